@@ -0,0 +1,166 @@
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// plays many games with the bot on every core and prints statistics about them, to see what a balance change does.
+// compile it with src/ like the benchmarks, then:
+//   java --enable-preview -cp out BalanceRunner [--games n] [--seed s] [--max-ticks t] [--aim-error pixels] [--threads n] [--endless]
+// a game ends with a game over, when the board is cleared, or after --max-ticks. every game gets its own seed made
+// from --seed and its number, so the report is the same for the same arguments, whatever the number of threads.
+// --endless plays on the scrolling board, which is never cleared: those games end with a game over or --max-ticks
+class BalanceRunner {
+    private static final int GAMES_PER_TASK = 64; // games played one after another by a task before it's worth splitting
+    private static final int STEPS_PER_TICK = 4; // a game can spend steps in the upgrade menu, this caps a stuck game
+
+    // one entry per game, each game writes only its own
+    private final int[] scores, livesLost;
+    private final long[] ticks, clearedAt;
+    // summed over all games
+    private final long[] upgradesPicked = new long[Simulation.Upgrade.TYPES.length], powerupsDropped = new long[Powerup.TYPES.length];
+
+    private final long seed;
+    private final int maxTicks, aimError;
+    private final boolean endless;
+
+    BalanceRunner (int games, long seed, int maxTicks, int aimError, boolean endless) {
+        this.scores = new int[games];
+        this.livesLost = new int[games];
+        this.ticks = new long[games];
+        this.clearedAt = new long[games];
+        this.seed = seed;
+        this.maxTicks = maxTicks;
+        this.aimError = aimError;
+        this.endless = endless;
+    }
+
+    public static void main (String[] args) {
+        int games = 10_000, maxTicks = 20_000, aimError = 40, threads = Runtime.getRuntime().availableProcessors();
+        long seed = 1;
+        boolean endless = false;
+        for (int i = 0; i < args.length; i += 2) {
+            if (args[i].equals("--endless")) { // the only option without a value
+                endless = true;
+                i--;
+                continue;
+            }
+            if (i + 1 >= args.length) throw new IllegalArgumentException("missing value for " + args[i]);
+            switch (args[i]) {
+                case "--games" -> games = Integer.parseInt(args[i + 1]);
+                case "--seed" -> seed = Long.parseLong(args[i + 1]);
+                case "--max-ticks" -> maxTicks = Integer.parseInt(args[i + 1]);
+                case "--aim-error" -> aimError = Integer.parseInt(args[i + 1]);
+                case "--threads" -> threads = Integer.parseInt(args[i + 1]);
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+
+        BalanceRunner runner = new BalanceRunner(games, seed, maxTicks, aimError, endless);
+        long start = System.nanoTime();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        pool.invoke(runner.new Batch(0, games));
+        pool.shutdown();
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d %sgames, seed %d, aim error %d, at most %d ticks each: %.1f s on %d threads (%.0f games/s)%n",
+            games, endless ? "endless " : "", seed, aimError, maxTicks, seconds, threads, games / seconds);
+        runner.report();
+    }
+
+    private class Batch extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int from, to;
+
+        Batch (int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute () {
+            if (to - from > GAMES_PER_TASK) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Batch(from, middle), new Batch(middle, to));
+                return;
+            }
+            long[] upgrades = new long[upgradesPicked.length], powerups = new long[powerupsDropped.length];
+            for (int game = from; game < to; game++) play(game, upgrades, powerups);
+            synchronized (BalanceRunner.this) { // sums, so the order the batches finish in doesn't matter
+                for (int i = 0; i < upgrades.length; i++) upgradesPicked[i] += upgrades[i];
+                for (int i = 0; i < powerups.length; i++) powerupsDropped[i] += powerups[i];
+            }
+        }
+    }
+
+    private void play (int game, long[] upgrades, long[] powerups) {
+        long gameSeed = mix(seed + game * 0x9E3779B97F4A7C15L);
+        Simulation simulation = new Simulation(new GameConfig(gameSeed, endless));
+        Bot bot = new Bot(new SplittableRandom(mix(gameSeed)));
+        bot.setAimError(aimError);
+
+        long steps = 0, maxSteps = (long) maxTicks * STEPS_PER_TICK;
+        while (simulation.getState() != Simulation.GameState.GAME_OVER && simulation.getClearedAtTick() < 0
+                && simulation.getTickCount() < maxTicks && steps++ < maxSteps) {
+            simulation.step(bot.inputs(simulation));
+        }
+
+        scores[game] = simulation.getBall().getScore();
+        livesLost[game] = Player.START_LIVES - simulation.getPlayer().getLives();
+        ticks[game] = simulation.getTickCount();
+        clearedAt[game] = simulation.getClearedAtTick();
+        for (Simulation.Upgrade.upgradeType type : Simulation.Upgrade.TYPES) upgrades[type.ordinal()] += simulation.getUpgradesPicked(type);
+        for (Powerup.powerType type : Powerup.TYPES) powerups[type.ordinal()] += simulation.getPowerupsDropped(type);
+    }
+
+    private static long mix (long z) { // splitmix64, spreads consecutive numbers into unrelated seeds
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // ------------------------------------------------------------------------------------
+    // report
+
+    private void report () {
+        int games = scores.length;
+        long[] scoreValues = new long[games];
+        for (int i = 0; i < games; i++) scoreValues[i] = scores[i];
+        printDistribution("score", scoreValues);
+        printDistribution("ticks played", ticks.clone());
+
+        long[] clearTimes = Arrays.stream(clearedAt).filter(t -> t >= 0).toArray();
+        System.out.printf("board cleared in %d games (%.1f%%)%n", clearTimes.length, 100.0 * clearTimes.length / games);
+        if (clearTimes.length > 0) printDistribution("ticks to clear", clearTimes);
+
+        int timedOut = 0;
+        for (long t : ticks) if (t >= maxTicks) timedOut++;
+        System.out.printf("still playing after %d ticks: %d games (%.1f%%)%n", maxTicks, timedOut, 100.0 * timedOut / games);
+
+        int[] byLives = new int[Player.START_LIVES + 1];
+        for (int lost : livesLost) byLives[Math.clamp(lost, 0, Player.START_LIVES)]++;
+        System.out.println("lives lost:");
+        for (int lost = 0; lost < byLives.length; lost++) System.out.printf("  %d  %6.1f%%%n", lost, 100.0 * byLives[lost] / games);
+
+        long picks = Arrays.stream(upgradesPicked).sum();
+        System.out.printf("upgrades picked: %.2f per game%n", (double) picks / games);
+        for (Simulation.Upgrade.upgradeType type : Simulation.Upgrade.TYPES) {
+            System.out.printf("  %-14s %6.1f%%%n", type, picks == 0 ? 0 : 100.0 * upgradesPicked[type.ordinal()] / picks);
+        }
+
+        System.out.println("powerups dropped per game:");
+        for (Powerup.powerType type : Powerup.TYPES) {
+            System.out.printf("  %-14s %8.2f%n", type, (double) powerupsDropped[type.ordinal()] / games);
+        }
+    }
+
+    private static void printDistribution (String name, long[] values) {
+        Arrays.sort(values);
+        double mean = Arrays.stream(values).average().orElse(0);
+        System.out.printf("%s: mean %.1f  min %d  p10 %d  p50 %d  p90 %d  max %d%n", name, mean,
+            values[0], percentile(values, 10), percentile(values, 50), percentile(values, 90), values[values.length - 1]);
+    }
+
+    private static long percentile (long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+}
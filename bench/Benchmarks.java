@@ -0,0 +1,397 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.SplittableRandom;
+
+// small benchmark harness for the tick and paint hot paths.
+// run it headless from the project root after compiling src/ and bench/ together:
+//   java -Djava.awt.headless=true -cp out Benchmarks [--save file | --compare file] [--snapshot file]
+// --save writes the ns/op of every benchmark, --compare fails (exit code 1) if any of them got slower than MAX_SLOWDOWN
+// --snapshot also times whole steps of a game saved from the pause menu, to measure a state a fresh board doesn't have
+// --allocations plays a long game with a bot instead, and fails if the simulation steps allocate memory
+class Benchmarks {
+    private static final int WARMUP_ITERATIONS = 20, MEASURED_ITERATIONS = 40;
+    private static final double MAX_SLOWDOWN = 1.15; // 15% slower than the saved baseline fails the comparison
+    static volatile long sink; // results are written here so the jit can't throw the work away
+    private static final long SEED = 42; // every iteration plays on the same board
+
+    interface Benchmark {
+        int setup(); // builds a fresh state, returns how many times run() may be called on it
+        void run();
+    }
+
+    public static void main (String[] args) throws IOException {
+        GameConfig config = new GameConfig(SEED);
+        if (args.length == 1 && args[0].equals("--allocations")) {
+            if (!checkAllocations(config)) System.exit(1);
+            return;
+        }
+        String save = null, compare = null, snapshot = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+                case "--save" -> save = args[i + 1];
+                case "--compare" -> compare = args[i + 1];
+                case "--snapshot" -> snapshot = args[i + 1];
+                default -> throw new IllegalArgumentException("unknown option " + args[i]);
+            }
+        }
+        Map <String, Benchmark> benchmarks = new LinkedHashMap<>();
+
+        benchmarks.put("Ball.tickBall fullBoard", tickBall(config, false));
+        benchmarks.put("Ball.tickBall nearEmptyBoard", tickBall(config, true));
+        benchmarks.put("Ball.touchingBlock fullBoard", touchingBlock(config));
+        benchmarks.put("BlockField.createAllBlocks", createAllBlocks(config));
+        benchmarks.put("Powerup.tick 50 powerups", powerupTick(config, 50));
+        benchmarks.put("Ball.tick 100 temporaryBalls", temporaryBalls(config, 100));
+        benchmarks.put("FloatingPoints.tick 1000 points", floatingPointsTick(config, 1000));
+        benchmarks.put("BallStorm.tick 4000 balls", stormTick(config, 4));
+        benchmarks.put("Renderer.drawPlaying fullBoard", drawPlaying(config, false, 0, 0, false));
+        benchmarks.put("Renderer.drawPlaying fullBoard redrawn", drawPlaying(config, false, 0, 0, true));
+        benchmarks.put("Renderer.drawPlaying nearEmptyBoard", drawPlaying(config, true, 0, 0, false));
+        benchmarks.put("Renderer.drawPlaying 100 temporaryBalls", drawPlaying(config, false, 100, 0, false));
+        benchmarks.put("Renderer.drawPlaying 1000 floatingPoints", drawPlaying(config, false, 0, 1000, false));
+        if (snapshot != null) benchmarks.put("Simulation.step " + Path.of(snapshot).getFileName(), stepSnapshot(Path.of(snapshot)));
+
+        Properties results = new Properties();
+        for (Map.Entry <String, Benchmark> entry : benchmarks.entrySet()) {
+            double nsPerOp = measure(entry.getValue());
+            results.setProperty(entry.getKey(), String.valueOf(nsPerOp));
+            System.out.printf("%-40s %12.1f ns/op%n", entry.getKey(), nsPerOp);
+        }
+
+        if (save != null) {
+            try (OutputStream out = new FileOutputStream(save)) {
+                results.store(out, "ns/op per benchmark");
+            }
+        }
+        else if (compare != null) {
+            Properties baseline = new Properties();
+            try (InputStream in = new FileInputStream(compare)) {
+                baseline.load(in);
+            }
+            boolean slower = false;
+            for (String name : results.stringPropertyNames()) {
+                String old = baseline.getProperty(name);
+                if (old == null) continue; // new benchmark, nothing to compare with
+                double ratio = Double.parseDouble(results.getProperty(name)) / Double.parseDouble(old);
+                if (ratio > MAX_SLOWDOWN) {
+                    System.out.printf("REGRESSION %s: %.2fx slower than the baseline%n", name, ratio);
+                    slower = true;
+                }
+            }
+            if (slower) System.exit(1);
+        }
+    }
+
+    private static double measure (Benchmark benchmark) {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) runIteration(benchmark);
+
+        // every iteration gets a fresh state, the reported value is the median so a gc pause doesn't move it
+        double[] samples = new double[MEASURED_ITERATIONS];
+        for (int i = 0; i < MEASURED_ITERATIONS; i++) samples[i] = runIteration(benchmark);
+        java.util.Arrays.sort(samples);
+        return samples[MEASURED_ITERATIONS / 2];
+    }
+
+    private static double runIteration (Benchmark benchmark) {
+        int ops = benchmark.setup();
+        long start = System.nanoTime();
+        for (int op = 0; op < ops; op++) benchmark.run();
+        return (double) (System.nanoTime() - start) / ops;
+    }
+
+    // ------------------------------------------------------------------------------------
+    // allocations
+
+    private static final int ALLOCATION_WARMUP_TICKS = 50_000, ALLOCATION_MEASURED_TICKS = 200_000, MEASURED_FRAMES = 2_000;
+    // garbage made every tick would be at least 16 bytes per tick. the little that's allowed is the fork-join pool of
+    // the ball storm, which sometimes allocates on the submitting thread when it starts a worker, and the pools of
+    // floating points and powerups, shared with the frame copies, growing when a game has more of them than ever before
+    private static final double MAX_BYTES_PER_TICK = 1;
+
+    private static boolean checkAllocations (GameConfig config) {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Bot bot = new Bot(new SplittableRandom(SEED));
+        bot.setPreferred(Simulation.Upgrade.upgradeType.ballStorm); // so the storm ticks are measured too
+        long seed = SEED;
+        Simulation simulation = new Simulation(config);
+        RenderFrame frame = new RenderFrame(simulation); // the game loop copies one after every step
+        for (int i = 0; i < ALLOCATION_WARMUP_TICKS; i++) {
+            if (simulation.getState() == Simulation.GameState.GAME_OVER) {
+                simulation = new Simulation(new GameConfig(++seed));
+                frame = new RenderFrame(simulation);
+            }
+            simulation.step(bot.inputs(simulation));
+            frame.capture(simulation, 0);
+        }
+
+        // only the steps are measured: a new game allocates, and so does an explosive ball upgrade (a new temporary ball)
+        bot.setAvoided(Simulation.Upgrade.upgradeType.explosiveBall);
+        long allocated = 0, captured = 0, ticks = 0;
+        for (int i = 0; i < ALLOCATION_MEASURED_TICKS; i++) {
+            if (simulation.getState() == Simulation.GameState.GAME_OVER) {
+                simulation = new Simulation(new GameConfig(++seed));
+                frame = new RenderFrame(simulation);
+            }
+            List <GameInput> inputs = bot.inputs(simulation);
+            long before = threads.getCurrentThreadAllocatedBytes();
+            simulation.step(inputs);
+            long stepped = threads.getCurrentThreadAllocatedBytes();
+            frame.capture(simulation, 0);
+            allocated += stepped - before;
+            captured += threads.getCurrentThreadAllocatedBytes() - stepped;
+            ticks++;
+        }
+        System.out.printf("Simulation.step %d ticks: %d bytes allocated (%.3f bytes/tick)%n", ticks, allocated, (double) allocated / ticks);
+        System.out.printf("RenderFrame.capture %d ticks: %d bytes allocated (%.3f bytes/tick)%n", ticks, captured, (double) captured / ticks);
+
+        // informational: java2d allocates inside drawString and friends, which isn't ours to fix
+        BufferedImage image = new BufferedImage(config.WIDTH_SCREEN, config.HEIGHT_SCREEN, BufferedImage.TYPE_INT_RGB);
+        Renderer renderer = new Renderer(config);
+        Graphics g = image.getGraphics();
+        for (int i = 0; i < MEASURED_FRAMES; i++) renderer.draw(g, frame, 0.5);
+        long before = threads.getCurrentThreadAllocatedBytes();
+        for (int i = 0; i < MEASURED_FRAMES; i++) renderer.draw(g, frame, 0.5);
+        long frameBytes = threads.getCurrentThreadAllocatedBytes() - before;
+        g.dispose();
+        System.out.printf("Renderer.draw %d frames: %.1f bytes/frame (java2d included, not checked)%n", MEASURED_FRAMES, (double) frameBytes / MEASURED_FRAMES);
+
+        boolean allocates = (double) allocated / ticks > MAX_BYTES_PER_TICK || (double) captured / ticks > MAX_BYTES_PER_TICK;
+        if (allocates) System.out.println("ALLOCATION the simulation step or its frame copy allocates memory");
+        return !allocates;
+    }
+
+    // ------------------------------------------------------------------------------------
+    // scenarios
+
+    private static Simulation newGame (GameConfig config, boolean nearEmpty) {
+        Simulation simulation = new Simulation(config);
+        if (nearEmpty) { // keep only the bottom row
+            BlockField blocks = simulation.getBlocks();
+            for (int x = 0; x < config.COLUMNS; x++) for (int y = 0; y < config.ROWS - 1; y++) blocks.remove(x, y);
+        }
+        return simulation;
+    }
+
+    private static void launch (Ball ball, int angle, int speed, int x, int y) {
+        ball.setDirection(angle);
+        ball.speed = speed;
+        ball.posX = x;
+        ball.posY = y;
+        ball.active = true;
+    }
+
+    private static Benchmark tickBall (GameConfig config, boolean nearEmpty) {
+        return new Benchmark() {
+            Simulation simulation;
+
+            public int setup () {
+                simulation = newGame(config, nearEmpty);
+                launch(simulation.getBall(), 70, simulation.getBall().BASE_SPEED, config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN - 2 * config.SIDE_SIZE);
+                return 200;
+            }
+
+            public void run () {
+                Ball ball = simulation.getBall();
+                ball.tickBall(config, simulation.getBlocks(), simulation.getPlayer());
+                sink += (long) ball.posX;
+            }
+        };
+    }
+
+    private static Benchmark touchingBlock (GameConfig config) {
+        return new Benchmark() { // every run puts the ball just below the lowest block of the next column, moving up: one hit each
+            Simulation simulation;
+            int run;
+
+            public int setup () {
+                simulation = newGame(config, false);
+                run = 0;
+                return config.COLUMNS * config.ROWS;
+            }
+
+            public void run () {
+                int col = run++ % config.COLUMNS;
+                BlockField blocks = simulation.getBlocks();
+                int row = config.ROWS - 1;
+                while (row > 0 && !blocks.isAlive(col, row)) row--;
+
+                Ball ball = simulation.getBall();
+                int blockBottom = config.SIDE_SIZE + (row + 1) * config.TILE_HEIGHT;
+                launch(ball, 80, ball.BASE_SPEED, config.SIDE_SIZE + col * config.TILE_WIDTH + config.TILE_WIDTH / 2, blockBottom + ball.size / 2 + ball.BASE_SPEED / 2);
+                ball.touchingBlock(config, blocks);
+                sink += (long) ball.posY;
+            }
+        };
+    }
+
+    private static Benchmark createAllBlocks (GameConfig config) {
+        return new Benchmark() {
+            public int setup () { return 20; }
+
+            public void run () {
+                BlockField blocks = BlockField.createAllBlocks(config, new RandomStream(SEED));
+                sink += blocks.getAliveCount();
+            }
+        };
+    }
+
+    private static Benchmark powerupTick (GameConfig config, int count) {
+        return new Benchmark() {
+            Simulation simulation;
+
+            public int setup () {
+                simulation = newGame(config, false);
+                for (int i = 0; i < count; i++) {
+                    Powerup.spawnPowerup(simulation.getPowerups(), config, config.SIDE_SIZE + i * 17 % (config.COLUMNS * config.TILE_WIDTH), config.SIDE_SIZE + i * 7, simulation.getBall().random);
+                }
+                simulation.getPlayer().initialState(config);
+                return 100;
+            }
+
+            public void run () {
+                ArrayList <Powerup> powerups = simulation.getPowerups();
+                Powerup.tick(simulation.getClock(), simulation.getEvents(), powerups, null, simulation.getPlayer());
+                sink += powerups.size();
+            }
+        };
+    }
+
+    private static void addTemporaryBalls (GameConfig config, Ball ball, int count) {
+        for (int i = 0; i < count; i++) {
+            TemporaryBall temp = new TemporaryBall(config, ball);
+            launch(temp, i * 360 / count, ball.BASE_SPEED - 5, config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN - 2 * config.SIDE_SIZE);
+            ball.addTempBall(temp);
+        }
+        ball.temporaryUntil = Long.MAX_VALUE; // keep them active for the whole iteration
+    }
+
+    private static Benchmark temporaryBalls (GameConfig config, int count) {
+        return new Benchmark() {
+            Simulation simulation;
+
+            public int setup () {
+                simulation = newGame(config, false);
+                Ball ball = simulation.getBall();
+                launch(ball, 70, ball.BASE_SPEED, config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN - 2 * config.SIDE_SIZE);
+                addTemporaryBalls(config, ball, count);
+                return 50;
+            }
+
+            public void run () {
+                Ball ball = simulation.getBall();
+                ball.tick(config, simulation.getBlocks(), simulation.getPlayer(), simulation.getPowerups());
+                sink += ball.getScore();
+            }
+        };
+    }
+
+    private static void addFloatingPoints (GameConfig config, Ball ball, int count) {
+        for (int i = 0; i < count; i++) {
+            ball.floatingPoints.add(new Ball.FloatingPoints(config.SIDE_SIZE + i % config.COLUMNS * config.TILE_WIDTH, config.SIDE_SIZE + i % config.ROWS * config.TILE_HEIGHT, 30 + i,
+                ball.clock.after(Ball.FloatingPoints.MAX_DUR)));
+        }
+    }
+
+    private static Benchmark floatingPointsTick (GameConfig config, int count) {
+        return new Benchmark() {
+            Ball ball;
+
+            public int setup () {
+                ball = newGame(config, false).getBall();
+                addFloatingPoints(config, ball, count);
+                return 100;
+            }
+
+            public void run () {
+                Ball.FloatingPoints.tick(ball.floatingPoints, ball.clock); // the clock doesn't move here, nothing expires
+                sink += ball.floatingPoints.size();
+            }
+        };
+    }
+
+    private static Benchmark stormTick (GameConfig config, int bursts) {
+        return new Benchmark() {
+            Simulation simulation;
+
+            public int setup () {
+                simulation = newGame(config, false);
+                Ball ball = simulation.getBall();
+                launch(ball, 70, ball.BASE_SPEED, config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN - 2 * config.SIDE_SIZE);
+                for (int i = 0; i < bursts; i++) simulation.getStorm().burst(config, ball, simulation.getPlayer());
+                return 20;
+            }
+
+            public void run () {
+                BallStorm storm = simulation.getStorm();
+                storm.savePositions();
+                storm.tick(config, simulation.getBlocks(), simulation.getPlayer(), simulation.getPowerups(), simulation.getBall());
+                sink += storm.getCount();
+            }
+        };
+    }
+
+    private static Benchmark stepSnapshot (Path path) throws IOException {
+        Simulation saved = Snapshot.load(path); // fails here rather than in the middle of the run if the file is bad
+        byte[] snapshot = Snapshot.capture(saved);
+        List <GameInput> resume = List.of(new GameInput(java.awt.event.KeyEvent.VK_P, true));
+        return new Benchmark() {
+            Simulation simulation;
+
+            public int setup () {
+                simulation = new Simulation(saved.getConfig());
+                try {
+                    Snapshot.restore(simulation, snapshot);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (simulation.getState() == Simulation.GameState.PAUSE) simulation.step(resume); // saved from the pause menu
+                return 200;
+            }
+
+            public void run () {
+                simulation.step(List.of());
+                sink += simulation.getTickCount();
+            }
+        };
+    }
+
+    // redrawField: every tile of the field layer is drawn again each frame, like after a scroll or a loaded game
+    private static Benchmark drawPlaying (GameConfig config, boolean nearEmpty, int temporaryBalls, int floatingPoints, boolean redrawField) {
+        BufferedImage image = new BufferedImage(config.WIDTH_SCREEN, config.HEIGHT_SCREEN, BufferedImage.TYPE_INT_RGB);
+        return new Benchmark() {
+            Renderer renderer;
+            RenderFrame frame;
+
+            public int setup () {
+                Simulation simulation = newGame(config, nearEmpty);
+                Ball ball = simulation.getBall();
+                launch(ball, 70, ball.BASE_SPEED, config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN - 2 * config.SIDE_SIZE);
+                if (temporaryBalls > 0) addTemporaryBalls(config, ball, temporaryBalls);
+                if (floatingPoints > 0) addFloatingPoints(config, ball, floatingPoints);
+                renderer = new Renderer(config);
+                frame = new RenderFrame(simulation);
+                frame.capture(simulation, 0);
+                run(); // first frame builds the cached layers, measure the frames after it
+                return 20;
+            }
+
+            public void run () {
+                if (redrawField) frame.blocks.markAllChanged();
+                Graphics g = image.getGraphics();
+                g.setColor(Color.black);
+                g.fillRect(0, 0, config.WIDTH_SCREEN, config.HEIGHT_SCREEN);
+                renderer.drawPlaying(g, frame, 1);
+                g.dispose();
+                sink += image.getRGB(config.WIDTH_SCREEN / 2, config.HEIGHT_SCREEN / 2);
+            }
+        };
+    }
+}
@@ -1,115 +1,1970 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
 import static java.lang.String.valueOf;
 
 class Game {
-    private static void initWindow () {
+    private static void initWindow (InputReplay replay, Simulation simulation) {
         JFrame window = new JFrame("Game");
         window.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE); // stop the app when we close the window
 
-        GameConfig config = new GameConfig();
-        Board board = new Board(config);
-        window.add (board);
-        window.addKeyListener(board); // pass keyboard inputs to the jpanel
+        GameConfig config = simulation.getConfig();
+        Board board = null;
+        GameCanvas canvas = null;
+        if (config.ACTIVE_RENDERING) {
+            canvas = new GameCanvas(simulation, replay);
+            window.setIgnoreRepaint(true);
+            window.add (canvas);
+            window.addKeyListener(canvas); // pass keyboard inputs to the canvas
+        }
+        else {
+            board = new Board(simulation, replay);
+            window.add (board);
+            window.addKeyListener(board); // pass keyboard inputs to the jpanel
+        }
+
+        window.pack(); //fits the window to the components
+        window.setLocationRelativeTo(null); // opens window in the center of the screen
+        window.setResizable(false); // not allow the user to resize the window
+        window.setVisible(true);
+        if (canvas != null) canvas.start();
+        else board.start();
+    }
+
+    public static void exitLater () { // leave the game over screen up for a moment before closing
+        Timer timer = new Timer(2000, _ -> System.exit(0));
+        timer.setRepeats(false); // Ensure the timer only runs once
+        timer.start();
+    }
+    // --record file        saves the inputs of the game, to replay it later
+    // --replay file        plays a recording in the window
+    // --replay file --headless [--repeat n]   plays it as fast as possible and prints the ticks per second
+    // --snapshot file      where the pause menu saves and loads the game, game.snap by default
+    // --endless            a board that never ends, new rows are generated as they scroll in
+    // --timings file       writes how long the phases of the steps and frames took when the game closes (F3 shows them)
+    // --events file        writes what happens in the game (blocks hit, powerups, lives, upgrades) as it's played
+    // --highscores file    where the finished games are kept, highscores.log by default. replays aren't kept
+    public static void main (String[] arg) throws IOException {
+        Path recordPath = null, replayPath = null, snapshotPath = Path.of("game.snap"), timingsPath = null, eventsPath = null,
+            highScoresPath = Path.of("highscores.log");
+        boolean headless = false, endless = false;
+        int repeats = 1;
+        for (int i = 0; i < arg.length; i++) {
+            switch (arg[i]) {
+                case "--record" -> recordPath = Path.of(arg[++i]);
+                case "--replay" -> replayPath = Path.of(arg[++i]);
+                case "--headless" -> headless = true;
+                case "--repeat" -> repeats = Integer.parseInt(arg[++i]);
+                case "--snapshot" -> snapshotPath = Path.of(arg[++i]);
+                case "--endless" -> endless = true;
+                case "--timings" -> timingsPath = Path.of(arg[++i]);
+                case "--events" -> eventsPath = Path.of(arg[++i]);
+                case "--highscores" -> highScoresPath = Path.of(arg[++i]);
+                default -> throw new IllegalArgumentException("unknown option " + arg[i]);
+            }
+        }
+
+        InputReplay replay = replayPath == null ? null : InputReplay.load(replayPath);
+        if (replay != null && headless) {
+            if (!replay.runHeadless(repeats)) System.exit(1);
+            return;
+        }
+
+        Simulation simulation = new Simulation(replay == null ? new GameConfig(new Random().nextLong(), endless) : replay.createConfig());
+        InputRecorder recorder = null;
+        if (recordPath != null) {
+            recorder = new InputRecorder(recordPath, simulation.getConfig());
+            simulation.setRecorder(recorder);
+            Runtime.getRuntime().addShutdownHook(new Thread(recorder::close)); // closing the window and the game over both exit
+        }
+        if (replay == null || replay.wentBack()) simulation.setRewind(new RewindBuffer(simulation.getConfig())); // a replay goes back where the game did
+        if (replay == null) { // a replay would load or overwrite the file, which isn't part of the recording
+            simulation.setSnapshots(new SnapshotStore(snapshotPath));
+            HighScores highScores = new HighScores(highScoresPath);
+            simulation.setHighScores(highScores);
+            Runtime.getRuntime().addShutdownHook(new Thread(highScores::close));
+        }
+        PhaseTimings timings = new PhaseTimings(); // always measured, the overlay can be opened at any time
+        simulation.setTimings(timings);
+        if (timingsPath != null) {
+            Path path = timingsPath;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> timings.write(path)));
+        }
+        if (eventsPath != null) {
+            EventLog log = new EventLog(simulation.getEvents(), eventsPath);
+            Runtime.getRuntime().addShutdownHook(new Thread(log::close));
+        }
+        initWindow(replay, simulation);
+    }
+}
+
+
+class GameConfig {
+    public final int TILE_WIDTH = 60, TILE_HEIGHT = 30, ROWS = 15, COLUMNS = 20, SIDE_SIZE = 130;
+    public final int WIDTH_SCREEN = TILE_WIDTH*COLUMNS + 2 * SIDE_SIZE, HEIGHT_SCREEN = TILE_HEIGHT*ROWS + 4 * SIDE_SIZE;
+    public final int DELAY = 25; // milliseconds of game time per simulation step, the physics is tuned for it
+    public final int RENDER_DELAY = 6; // milliseconds between frames, independent of the simulation step
+    public final int MAX_STEPS_PER_FRAME = 5; // after a long stall, drop the lost time instead of running a burst of steps
+    public final boolean ACTIVE_RENDERING = false; // true: draw from our own thread with page flipping instead of swing's repaint
+    public final int REWIND_SECONDS = 10, REWIND_MEMORY = 8 << 20; // how far back the pause menu can go, and the bytes it may use for it
+    public final int SCROLL_SPEED = 2, CHUNK_ROWS = 16; // endless board: pixels per tick, rows generated at once
+    public final long SEED; // every random choice of a game comes from it (see GameRandom), the same seed plays the same game
+    public final boolean ENDLESS; // the board goes up forever instead of ending after ROWS rows
+
+    public GameConfig () {
+        this(new Random().nextLong(), false);
+    }
+
+    public GameConfig (long seed) {
+        this(seed, false);
+    }
+
+    public GameConfig (long seed, boolean endless) {
+        this.SEED = seed;
+        this.ENDLESS = endless;
+    }
+}
+
+
+// the random numbers of one game. the seed is split into a separate stream for each part of the game, so one part
+// drawing more numbers (a new kind of drop, say) doesn't change what the others get: the same seed still builds
+// the same level
+class GameRandom {
+    final RandomStream level, drops, upgrades;
+
+    public GameRandom (long seed) {
+        RandomStream root = new RandomStream(seed);
+        this.level = root.split(); // always in this order, a new stream goes at the end
+        this.drops = root.split();
+        this.upgrades = root.split();
+    }
+
+    public void writeState (DataOutput out) throws IOException {
+        level.writeState(out);
+        drops.writeState(out);
+        upgrades.writeState(out);
+    }
+
+    public void readState (DataInput in) throws IOException {
+        level.readState(in);
+        drops.readState(in);
+        upgrades.readState(in);
+    }
+}
+
+
+// the splitmix64 generator of SplittableRandom, giving the same numbers for the same seed, but with its state
+// in reach so a snapshot can save it and carry on with the exact same numbers. no atomic seed like Random
+class RandomStream {
+    private static final long GOLDEN_GAMMA = 0x9E3779B97F4A7C15L;
+    private long seed, gamma; // gamma is odd, the seed moves by it for every number
+
+    public RandomStream (long seed) {
+        this(seed, GOLDEN_GAMMA);
+    }
+
+    private RandomStream (long seed, long gamma) {
+        this.seed = seed;
+        this.gamma = gamma;
+    }
+
+    public RandomStream split () { // a new independent stream, same as SplittableRandom.split()
+        return new RandomStream(mix64(nextSeed()), mixGamma(nextSeed()));
+    }
+
+    public int nextInt (int bound) { // 0 to bound-1, without bias
+        int r = mix32(nextSeed());
+        int m = bound - 1;
+        if ((bound & m) == 0) return r & m; // power of two
+        for (int u = r >>> 1; u + m - (r = u % bound) < 0; u = mix32(nextSeed()) >>> 1);
+        return r;
+    }
+
+    private long nextSeed () { return seed += gamma; }
+
+    private static long mix64 (long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static int mix32 (long z) {
+        z = (z ^ (z >>> 33)) * 0x62A9D9ED799705F5L;
+        return (int) (((z ^ (z >>> 28)) * 0xCB24D0A5C88C35B3L) >>> 32);
+    }
+
+    private static long mixGamma (long z) {
+        z = (z ^ (z >>> 33)) * 0xFF51AFD7ED558CCDL;
+        z = (z ^ (z >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        z = (z ^ (z >>> 33)) | 1L;
+        int n = Long.bitCount(z ^ (z >>> 1));
+        return (n < 24) ? z ^ 0xAAAAAAAAAAAAAAAAL : z;
+    }
+
+    public void writeState (DataOutput out) throws IOException {
+        out.writeLong(seed);
+        out.writeLong(gamma);
+    }
+
+    public void readState (DataInput in) throws IOException {
+        seed = in.readLong();
+        gamma = in.readLong() | 1L;
+    }
+}
+
+
+// the time of a game, counted in ticks of DELAY milliseconds. a timer is the tick it runs out on, not a count of
+// milliseconds left: every timer stops while the game doesn't tick (paused, in a menu) and keeps up however fast or
+// slow the simulation is run. System.nanoTime is only for the window, to know when to step and draw
+class GameClock {
+    private final int tickMillis;
+    private long now; // ticks played
+
+    public GameClock (GameConfig config) { this.tickMillis = config.DELAY; }
+
+    public long now () { return now; }
+    void advance () { now++; } // only the simulation moves it
+    void set (long tick) { now = tick; } // a loaded game
+
+    public int ticks (int millis) { return (millis + tickMillis - 1) / tickMillis; } // rounded up
+    public long after (int millis) { return now + ticks(millis); } // the tick a timer started now runs out on
+    public boolean reached (long tick) { return now >= tick; }
+
+    public int millisLeft (long tick) { // for showing a timer
+        return Math.clamp(tick - now, 0, Integer.MAX_VALUE / tickMillis) * tickMillis;
+    }
+}
+
+
+// what happens in a game, for whoever wants to know without the collision code calling them: the ball publishes the
+// blocks it hits and reads them back after moving to score them, the simulation counts drops and upgrades from them,
+// and EventLog writes them to a file from its own thread. the simulation's thread is the only writer. an event is a
+// few ints in preallocated arrays used as a ring, so publishing one allocates nothing and waits for no one.
+// every reader keeps its own position. the readers on the simulation's thread catch up during the step, so the ring
+// only has to hold the events of one step. a reader on another thread can fall behind: its events get overwritten,
+// which it finds out by checking the position again after reading one, like a seqlock, and counts them as lost
+class GameEvents {
+    enum Kind {
+        BLOCK_HIT, // col, row, damage
+        BLOCK_DESTROYED, // points, x, y, by (BY_BALL, BY_TEMPORARY_BALL, BY_STORM)
+        POWERUP_SPAWNED, // type, x, y
+        POWERUP_CAUGHT, // type
+        LIFE_LOST, // lives left
+        UPGRADE_OFFERED, // choice 1, choice 2
+        UPGRADE_PICKED // type
+    }
+    static final Kind[] KINDS = Kind.values();
+    static final int BY_BALL = 0, BY_TEMPORARY_BALL = 1, BY_STORM = 2;
+
+    // a step of a full storm can hit a block with every ball, destroy it and drop a powerup: 3 events each
+    static final int CAPACITY = 1 << 15;
+    private static final int MASK = CAPACITY - 1;
+    private static final VarHandle PUBLISHED;
+    static {
+        try {
+            PUBLISHED = MethodHandles.lookup().findVarHandle(GameEvents.class, "published", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    private final GameClock clock;
+    private final byte[] kinds = new byte[CAPACITY];
+    private final long[] ticks = new long[CAPACITY];
+    private final int[] a = new int[CAPACITY], b = new int[CAPACITY], c = new int[CAPACITY], d = new int[CAPACITY];
+    private volatile long published = 0; // events written so far, set with a release store: no fence on every event
+
+    public GameEvents (GameClock clock) { this.clock = clock; }
+
+    void publish (Kind kind, int a, int b, int c, int d) { // only from the simulation's thread
+        long position = published; // the only writer, it doesn't race with itself
+        int slot = (int) position & MASK;
+        VarHandle.storeStoreFence(); // a reader that sees the new values also sees they're past its position
+        kinds[slot] = (byte) kind.ordinal();
+        ticks[slot] = clock.now();
+        this.a[slot] = a;
+        this.b[slot] = b;
+        this.c[slot] = c;
+        this.d[slot] = d;
+        PUBLISHED.setRelease(this, position + 1);
+    }
+
+    public long published () { return published; }
+
+    // an event is read by position, field by field, then checked with overwritten: until then the values may be
+    // another event's if the position is CAPACITY behind
+    public Kind kind (long position) { return KINDS[kinds[(int) position & MASK]]; }
+    public long tick (long position) { return ticks[(int) position & MASK]; }
+    public int a (long position) { return a[(int) position & MASK]; }
+    public int b (long position) { return b[(int) position & MASK]; }
+    public int c (long position) { return c[(int) position & MASK]; }
+    public int d (long position) { return d[(int) position & MASK]; }
+
+    public boolean overwritten (long position) {
+        VarHandle.acquireFence(); // the values read before can't be read after the position
+        return published - position >= CAPACITY; // the writer may already be writing over it at CAPACITY
+    }
+}
+
+
+// writes the events of a game to a text file, one per line: "tick kind a b c d". its thread wakes up a few times a
+// second and writes what was published since, the simulation never waits for it. if it falls a whole ring behind
+// the events in between are lost, it writes how many
+class EventLog implements Runnable {
+    private static final long PERIOD_NANOS = 100_000_000L;
+
+    private final GameEvents events;
+    private final BufferedWriter out;
+    private final Thread thread;
+    private long read = 0; // position of the next event to write
+    private volatile boolean running = true;
+    private boolean closed = false;
+
+    public EventLog (GameEvents events, Path path) throws IOException {
+        this.events = events;
+        this.out = Files.newBufferedWriter(path);
+        this.read = events.published(); // from now on
+        this.thread = new Thread(this, "event log");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run () {
+        while (running) {
+            LockSupport.parkNanos(PERIOD_NANOS);
+            drain();
+        }
+    }
+
+    private synchronized void drain () {
+        if (closed) return;
+        try {
+            long end = events.published();
+            while (read < end) {
+                GameEvents.Kind kind = events.kind(read);
+                long tick = events.tick(read);
+                int a = events.a(read), b = events.b(read), c = events.c(read), d = events.d(read);
+                if (events.overwritten(read)) { // went round while reading, skip to what's still there
+                    long next = events.published() - GameEvents.CAPACITY / 2;
+                    out.write("lost " + (next - read) + " events\n");
+                    read = next;
+                    continue;
+                }
+                out.write(tick + " " + kind + " " + a + " " + b + " " + c + " " + d + "\n");
+                read++;
+            }
+            out.flush();
+        } catch (IOException e) { // a broken log shouldn't stop the game
+            System.err.println("event log stopped: " + e.getMessage());
+            closed = true;
+            running = false;
+        }
+    }
+
+    public void close () {
+        running = false;
+        LockSupport.unpark(thread);
+        drain();
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+            try { out.close(); } catch (IOException ignored) {}
+        }
+    }
+}
+
+
+class GameInput {
+    final int keyCode;
+    final boolean pressed; // false if the key was released
+    final long time; // System.nanoTime() when the window got the key, 0 if it didn't come from the keyboard (bot, replay)
+
+    public GameInput (int keyCode, boolean pressed) {
+        this(keyCode, pressed, 0);
+    }
+
+    public GameInput (int keyCode, boolean pressed, long time) {
+        this.keyCode = keyCode;
+        this.pressed = pressed;
+        this.time = time;
+    }
+}
+
+
+// the whole game logic, without any window. one step() is one tick of DELAY milliseconds of game time,
+// but nothing waits for it, so it can run as fast as the cpu allows (tests, bots, servers with no display)
+class Simulation {
+    private final GameConfig config;
+    private final Player player;
+    private final BlockField blocks;
+    private final Ball ball;
+    private final BallStorm storm;
+    private final ArrayList <Powerup> powerups; // list of the powerups currently active on screen
+    private Powerup activePowerup = null;
+    private GameState state;
+    private final Upgrade upgrade;
+    private final GameRandom random;
+    private final GameClock clock;
+    private final GameEvents events;
+    private long seed; // config.SEED, or the seed of a loaded snapshot
+    private long stepCount = 0;
+    private long stepsPlayed = 0; // every step of this simulation, for the recorder and the replays. stepCount goes back with a rewind or a load
+
+    // statistics for the balance runner
+    private final int[] upgradesPicked = new int[Upgrade.TYPES.length], powerupsDropped = new int[Powerup.TYPES.length];
+    private long clearedAtTick = -1;
+    private long eventsRead = 0; // the statistics are counted from the events
+    private InputRecorder recorder; // null when not recording
+    private SnapshotStore snapshots; // null when the pause menu can't save and load
+    private HighScores highScores; // null when the games aren't kept, replays aren't
+    private RewindBuffer rewind; // null when the pause menu can't go back in time
+    private PhaseTimings timings = PhaseTimings.OFF; // how long the phases of a step take, see the F3 overlay
+
+    public enum GameState {
+        MENU,
+        PLAYING,
+        PAUSE,
+        UPGRADE,
+        GAME_OVER
+    }
+
+    public Simulation (GameConfig c) {
+        this.config = c;
+        this.seed = config.SEED;
+        this.random = new GameRandom(seed);
+        this.clock = new GameClock(config);
+        this.events = new GameEvents(clock);
+
+        this.state = GameState.PLAYING;
+        this.player = new Player(config);
+        this.blocks = config.ENDLESS ? BlockField.createEndless(config, random.level) : BlockField.createAllBlocks(config, random.level);
+        this.ball = new Ball(config, random.drops, clock, events);
+        this.storm = new BallStorm();
+
+        // every floating point and powerup comes from a destroyed block, so there can't be more of them than blocks
+        int maxBlocks = config.COLUMNS * config.ROWS;
+        this.powerups = new ArrayList<>(maxBlocks);
+        ball.reserveFloatingPoints(maxBlocks);
+        reservePools(0); // headless, the thread creating a game steps it too. the window's GameLoop reserves on its own thread
+        this.upgrade = new Upgrade();
+    }
+
+    // the pools of floating points and powerups are per thread: filled up front on the thread that steps the game, they
+    // never grow during it. every copy of the game (a RenderFrame) takes as many from them as the game itself
+    public void reservePools (int copies) {
+        int count = config.COLUMNS * config.ROWS * (copies + 1);
+        Powerup.reserve(count);
+        Ball.FloatingPoints.reserve(count);
+    }
+
+    public GameConfig getConfig () { return config; }
+    public long getSeed () { return seed; }
+    void setSeed (long seed) { this.seed = seed; } // a loaded snapshot
+    public GameState getState () { return state; }
+    public Player getPlayer () { return player; }
+    public BlockField getBlocks () { return blocks; }
+    public Ball getBall () { return ball; }
+    public BallStorm getStorm () { return storm; }
+    public ArrayList <Powerup> getPowerups () { return powerups; }
+    public Upgrade getUpgrade () { return upgrade; }
+    public long getTickCount () { return clock.now(); }
+    public GameClock getClock () { return clock; }
+    public GameEvents getEvents () { return events; }
+    public long getStepsPlayed () { return stepsPlayed; }
+    public void setRecorder (InputRecorder recorder) { this.recorder = recorder; }
+    public SnapshotStore getSnapshots () { return snapshots; }
+    public void setSnapshots (SnapshotStore snapshots) { this.snapshots = snapshots; }
+    public HighScores getHighScores () { return highScores; }
+    public void setHighScores (HighScores highScores) { this.highScores = highScores; }
+    public RewindBuffer getRewind () { return rewind; }
+    public void setRewind (RewindBuffer rewind) { this.rewind = rewind; }
+    public void setTimings (PhaseTimings timings) { this.timings = timings; }
+    public PhaseTimings getTimings () { return timings; }
+    public int getUpgradesPicked (Upgrade.upgradeType type) { return upgradesPicked[type.ordinal()]; }
+    public int getPowerupsDropped (Powerup.powerType type) { return powerupsDropped[type.ordinal()]; }
+    public long getClearedAtTick () { return clearedAtTick; } // -1 while there are blocks left
+
+    public void step (List <GameInput> inputs) { // applies the inputs received since the last step, then advances one tick
+        long stepStart = timings.start();
+        if (snapshots != null && snapshots.applyLoaded(this)) { // between steps, a loaded game replaces this one
+            if (rewind != null) rewind.clear();
+            if (recorder != null) recorder.stop("a snapshot was loaded"); // a replay can't load the file
+            recorder = null;
+        }
+        long step = stepsPlayed++;
+        stepCount++;
+        savePositions();
+        for (int i = 0; i < inputs.size(); i++) { // indexed loops in the tick, so no iterator is allocated
+            GameInput input = inputs.get(i);
+            if (input.pressed) keyPressed(input.keyCode);
+            else keyReleased(input.keyCode);
+        }
+        long t = timings.lap(PhaseTimings.Phase.INPUT, stepStart);
+        if (state == GameState.PLAYING) {
+            if (rewind != null) {
+                rewind.record(this);
+                timings.lap(PhaseTimings.Phase.REWIND, t);
+            }
+            tick();
+        }
+        countEvents();
+        if (recorder != null) recorder.record(step, inputs, ball.getScore());
+        timings.lap(PhaseTimings.Phase.STEP, stepStart);
+    }
+
+    private void countEvents () {
+        long end = events.published();
+        if (events.overwritten(eventsRead)) throw new IllegalStateException("more than " + GameEvents.CAPACITY + " events in a step");
+        for (; eventsRead < end; eventsRead++) {
+            switch (events.kind(eventsRead)) {
+                case POWERUP_SPAWNED -> powerupsDropped[events.a(eventsRead)]++;
+                case UPGRADE_PICKED -> upgradesPicked[events.a(eventsRead)]++;
+                default -> {}
+            }
+        }
+    }
+
+    private void savePositions () { // the positions before this step, so the renderer can interpolate towards the new ones
+        player.savePosition();
+        ball.savePosition();
+        storm.savePositions();
+        for (int i = 0; i < powerups.size(); i++) powerups.get(i).savePosition();
+    }
+
+    private void keyPressed (int key) {
+        switch (state) {
+            case PLAYING:
+                if (key == KeyEvent.VK_P) state = GameState.PAUSE;
+                else {
+                    player.keyPressed(key);
+                    ball.keyPressed(key);
+                }
+                break;
+            case UPGRADE:
+                upgrade.chooseType(key);
+                break;
+            case PAUSE:
+                if (key == KeyEvent.VK_P) state = GameState.PLAYING;
+                else if (key == KeyEvent.VK_E) gameOver();
+                else if (key == KeyEvent.VK_S && snapshots != null) snapshots.save(this);
+                else if (key == KeyEvent.VK_L && snapshots != null) snapshots.load();
+                else if ((key == KeyEvent.VK_LEFT || key == KeyEvent.VK_RIGHT) && rewind != null) {
+                    if (recorder != null) recorder.wentBack();
+                    rewind.scrub(this, key == KeyEvent.VK_LEFT ? -RewindBuffer.SCRUB_TICKS : RewindBuffer.SCRUB_TICKS);
+                    state = GameState.PAUSE; // the ticks were recorded while playing
+                }
+                break;
+        }
+    }
+
+    private void keyReleased (int key) {
+        player.keyReleased(key);
+    }
+
+    private void tick () {
+        long t = timings.start();
+        clock.advance();
+        player.tick(config);
+        t = timings.lap(PhaseTimings.Phase.PLAYER, t);
+        if (!powerups.isEmpty()) Powerup.tick(clock, events, powerups, activePowerup, player);
+        if (activePowerup != null) {
+
+        }
+        t = timings.lap(PhaseTimings.Phase.POWERUPS, t);
+        int oldBallScore = ball.getScore();
+
+        ball.tickBalls(config, blocks, player, powerups);
+        t = timings.lap(PhaseTimings.Phase.BALL, t);
+        ball.tickEffects();
+        t = timings.lap(PhaseTimings.Phase.FLOATING_POINTS, t);
+        storm.tick(config, blocks, player, powerups, ball);
+        t = timings.lap(PhaseTimings.Phase.STORM, t);
+        int scrolled = blocks.scroll(config.SCROLL_SPEED);
+        if (scrolled > 0) { // the view goes up the board: what's in it moves down with the blocks, the player stays
+            ball.shift(scrolled);
+            storm.shift(scrolled);
+            for (int i = 0; i < powerups.size(); i++) powerups.get(i).shift(scrolled);
+        }
+        timings.lap(PhaseTimings.Phase.BLOCKS, t);
+        if (clearedAtTick < 0 && blocks.isCleared()) clearedAtTick = clock.now();
+
+        if (ball.getClass() == Ball.class) {
+            if (ball.getSpeed() <= 0 && ball.active) reset(config);
+        }
+
+        int newBallScore = ball.getScore();
+        // upgrade conditions
+        if (oldBallScore != newBallScore && oldBallScore % (1000 * (upgrade.numberOfUpgrades * 2 + 1)) > newBallScore % (1000 * (upgrade.numberOfUpgrades * 2 + 1))) upgrade.getUpgrade();
+        if (player.getLives() == 0) gameOver();
+    }
+
+    private void gameOver () {
+        state = GameState.GAME_OVER;
+        if (highScores != null) highScores.add(ball.getScore(), clock.now(), seed, config.ENDLESS); // written on its own thread
+    }
+
+    private void reset (GameConfig config) {
+        ball.initialState (config);
+        player.initialState(config);
+        player.loseLive();
+        events.publish(GameEvents.Kind.LIFE_LOST, player.getLives(), 0, 0, 0);
+    }
+
+    public void writeState (DataOutput out) throws IOException { // everything the game needs to carry on, see Snapshot
+        out.writeByte(state.ordinal());
+        out.writeLong(clock.now());
+        out.writeLong(stepCount);
+        out.writeLong(clearedAtTick);
+        for (int picked : upgradesPicked) out.writeInt(picked);
+        for (int dropped : powerupsDropped) out.writeInt(dropped);
+        upgrade.writeState(out);
+        random.writeState(out);
+        player.writeState(out);
+        blocks.writeState(out);
+        ball.writeState(out);
+        storm.writeState(out);
+        Powerup.writeState(powerups, out);
+    }
+
+    public void readState (DataInput in) throws IOException {
+        state = GameState.values()[in.readUnsignedByte()];
+        clock.set(in.readLong());
+        stepCount = in.readLong();
+        clearedAtTick = in.readLong();
+        for (int i = 0; i < upgradesPicked.length; i++) upgradesPicked[i] = in.readInt();
+        for (int i = 0; i < powerupsDropped.length; i++) powerupsDropped[i] = in.readInt();
+        upgrade.readState(in);
+        random.readState(in);
+        player.readState(in);
+        blocks.readState(in);
+        ball.readState(config, in);
+        storm.readState(in);
+        Powerup.readState(powerups, in);
+        activePowerup = null;
+    }
+
+    public class Upgrade {
+        public upgradeType type, choice1, choice2;
+        boolean choosing = false;
+        private int numberOfUpgrades = 0;
+        private static final int KEY_DELAY = 200; // milliseconds between presses
+        private final int keyDelaySteps = clock.ticks(KEY_DELAY); // counted in steps so bots aren't slowed down
+        private long lastKeyPressStep = -keyDelaySteps;
+
+        public enum upgradeType {
+            widenPlayer,
+            enlargeBall,
+            quickerPlayer,
+            explosiveBall,
+            moreDamage,
+            ballStorm
+        }
+        static final upgradeType[] TYPES = upgradeType.values();
+
+        public Upgrade () {
+            randomChoices();
+        }
+
+
+        public void getUpgrade () {
+            state = GameState.UPGRADE;
+            events.publish(GameEvents.Kind.UPGRADE_OFFERED, choice1.ordinal(), choice2.ordinal(), 0, 0);
+        }
+
+        public int getNumberOfUpgrades () { return numberOfUpgrades; }
+
+        private void randomChoices () {
+            RandomStream ran = random.upgrades;
+            upgradeType[] types = TYPES;
+            int choice1 = ran.nextInt(types.length);
+            int choice2;
+            this.choice1 = types[choice1];
+            do {
+                choice2 = ran.nextInt(types.length); // pick 2 different choices at random
+            } while (choice1 == choice2);
+            this.choice2 = types[choice2];
+        }
+
+        public void chooseType (int key) { // logic to choose the menu (may re-use)
+            if (stepCount - lastKeyPressStep <= keyDelaySteps) return; // delay between presses
+            lastKeyPressStep = stepCount;
+
+            if (key == KeyEvent.VK_LEFT || key == KeyEvent.VK_RIGHT) {
+                choosing = !choosing;
+            }
+            else if (key == KeyEvent.VK_ENTER) {
+                type = choosing ? choice2 : choice1;
+                events.publish(GameEvents.Kind.UPGRADE_PICKED, type.ordinal(), 0, 0, 0);
+                choosing = false;
+                numberOfUpgrades++;
+                randomChoices();
+                gottenUpgrade();
+            }
+        }
+
+        private void gottenUpgrade () {
+            switch (upgrade.type) {
+                case enlargeBall -> ball.enlargeBall();
+                case widenPlayer -> player.widenPlayer();
+                case quickerPlayer -> player.fastenPlayer();
+                case moreDamage -> ball.moreDamage();
+                case explosiveBall -> explosiveBallUpgrade();
+                case ballStorm -> storm.burst(config, ball, player);
+            }
+            state = GameState.PLAYING;
+        }
+
+        private void explosiveBallUpgrade () {
+            TemporaryBall newBall = new TemporaryBall(config, ball);
+            ball.addTempBall (newBall);
+        }
+
+        void writeState (DataOutput out) throws IOException {
+            out.writeByte(type == null ? -1 : type.ordinal()); // no upgrade picked yet
+            out.writeByte(choice1.ordinal());
+            out.writeByte(choice2.ordinal());
+            out.writeBoolean(choosing);
+            out.writeInt(numberOfUpgrades);
+            out.writeLong(lastKeyPressStep);
+        }
+
+        void readState (DataInput in) throws IOException {
+            int picked = in.readByte();
+            type = picked < 0 ? null : TYPES[picked];
+            choice1 = TYPES[in.readUnsignedByte()];
+            choice2 = TYPES[in.readUnsignedByte()];
+            choosing = in.readBoolean();
+            numberOfUpgrades = in.readInt();
+            lastKeyPressStep = in.readLong();
+        }
+    }
+}
+
+
+// plays the game without a keyboard, for batch runs and benchmarks: it moves the player under the ball, launches the
+// ball, and picks upgrades. its random choices come from its own Random, so a seeded bot replays the same game
+class Bot {
+    private static final List <GameInput> NO_INPUT = List.of();
+    private static final List <GameInput> GO_LEFT = List.of(new GameInput(KeyEvent.VK_RIGHT, false), new GameInput(KeyEvent.VK_LEFT, true));
+    private static final List <GameInput> GO_RIGHT = List.of(new GameInput(KeyEvent.VK_LEFT, false), new GameInput(KeyEvent.VK_RIGHT, true));
+    private static final List <GameInput> STOP = List.of(new GameInput(KeyEvent.VK_LEFT, false), new GameInput(KeyEvent.VK_RIGHT, false));
+    private static final List <GameInput> SWITCH = List.of(new GameInput(KeyEvent.VK_RIGHT, true));
+    private static final List <GameInput> CHOOSE = List.of(new GameInput(KeyEvent.VK_ENTER, true));
+    private static final int DEAD_ZONE = 10; // pixels from the player's centre where it stops moving
+
+    private final SplittableRandom random;
+    private Simulation.Upgrade.upgradeType preferred, avoided; // null: no preference
+    private int chosenUpgrades = -1; // the upgrade menu the current choice was made for
+    private boolean wantSecond;
+    private int aimError = 0, aimOffset = 0; // how far from the ball it may aim, a new random offset after every bounce
+    private double lastDirectionY = 0;
+
+    public Bot (SplittableRandom random) {
+        this.random = random;
+    }
+
+    public void setPreferred (Simulation.Upgrade.upgradeType type) { preferred = type; }
+    public void setAvoided (Simulation.Upgrade.upgradeType type) { avoided = type; }
+    public void setAimError (int pixels) { aimError = pixels; } // 0 plays perfectly, more than half the player's width misses sometimes
+
+    public List <GameInput> inputs (Simulation simulation) { // what to press before the next step
+        switch (simulation.getState()) {
+            case PLAYING:
+                break;
+            case UPGRADE:
+                return chooseUpgrade(simulation.getUpgrade());
+            default:
+                return NO_INPUT;
+        }
+
+        Ball ball = simulation.getBall();
+        if (!ball.active) return random.nextBoolean() ? GO_LEFT : GO_RIGHT; // either key launches the ball
+        if (ball.directionY > 0 && lastDirectionY <= 0 && aimError > 0) aimOffset = random.nextInt(2 * aimError + 1) - aimError; // started to fall
+        lastDirectionY = ball.directionY;
+        int center = simulation.getPlayer().getX() + aimOffset;
+        if (ball.posX < center - DEAD_ZONE) return GO_LEFT;
+        if (ball.posX > center + DEAD_ZONE) return GO_RIGHT;
+        return STOP;
+    }
+
+    private List <GameInput> chooseUpgrade (Simulation.Upgrade upgrade) {
+        if (chosenUpgrades != upgrade.getNumberOfUpgrades()) { // a new menu, decide once
+            chosenUpgrades = upgrade.getNumberOfUpgrades();
+            if (upgrade.choice1 == preferred || upgrade.choice2 == avoided) wantSecond = false;
+            else if (upgrade.choice2 == preferred || upgrade.choice1 == avoided) wantSecond = true;
+            else wantSecond = random.nextBoolean();
+        }
+        return upgrade.choosing != wantSecond ? SWITCH : CHOOSE; // the menu ignores presses that come too quickly, so keep pressing
+    }
+}
+
+
+// fixed step timing, shared by the swing board and the active renderer. the game runs on its own thread: it wakes
+// up when a step is due, runs as many DELAY sized steps as the elapsed time needs, and publishes a RenderFrame of the
+// result. the window draws the newest frame whenever it wants, interpolating between the frame's last two positions
+// by how far it is into the next step, so a slow frame doesn't delay the game and a slow step doesn't delay a frame
+class GameLoop implements Runnable {
+    private final Simulation simulation;
+    private final RenderFrames frames;
+    private final ConcurrentLinkedQueue <GameInput> inputQueue = new ConcurrentLinkedQueue<>(); // key events come from the swing thread
+    private final ArrayList <GameInput> stepInputs = new ArrayList<>();
+    private final long stepNanos, maxAccumulatedTime;
+    private long lastStepTime, accumulatedTime; // nanoseconds
+    private InputReplay replay; // when set, the inputs come from it and the keyboard is ignored
+
+    public GameLoop (Simulation simulation) {
+        this.simulation = simulation;
+        GameConfig config = simulation.getConfig();
+        this.stepNanos = config.DELAY * 1_000_000L;
+        this.maxAccumulatedTime = stepNanos * config.MAX_STEPS_PER_FRAME;
+        this.frames = new RenderFrames(simulation);
+        publish(System.nanoTime()); // there's a frame to draw before the first step
+    }
+
+    public Simulation getSimulation () { return simulation; }
+    public void setReplay (InputReplay replay) { this.replay = replay; }
+
+    public void addInput (GameInput input) {
+        if (replay == null) inputQueue.add(input);
+    }
+
+    public void start (long now) {
+        lastStepTime = now;
+        accumulatedTime = 0;
+    }
+
+    public void startThread () {
+        start(System.nanoTime());
+        Thread thread = new Thread(this, "simulation");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run () {
+        simulation.reservePools(RenderFrames.COUNT); // the pools of this thread, where the steps and the frames take from
+        while (true) {
+            advance(System.nanoTime());
+            LockSupport.parkNanos(stepNanos - accumulatedTime); // until the next step is due
+        }
+    }
+
+    public void advance (long now) { // runs the steps due by now, and publishes a frame if there were any
+        accumulatedTime += now - lastStepTime;
+        lastStepTime = now;
+        if (accumulatedTime > maxAccumulatedTime) accumulatedTime = maxAccumulatedTime;
+        if (accumulatedTime < stepNanos) return;
+
+        RenderFrame frame = frames.writable();
+        while (accumulatedTime >= stepNanos) {
+            if (replay != null) {
+                long step = simulation.getStepsPlayed();
+                simulation.step(replay.inputsFor(step));
+                if (step + 1 == replay.getEndStep()) replay.printResult(simulation);
+            }
+            else {
+                GameInput input;
+                while ((input = inputQueue.poll()) != null) {
+                    stepInputs.add(input);
+                    if (input.time != 0) frame.addInputTime(input.time);
+                }
+                simulation.step(stepInputs);
+                stepInputs.clear();
+            }
+            accumulatedTime -= stepNanos;
+        }
+        publish(now - accumulatedTime); // when the last step was due
+    }
+
+    private void publish (long steppedAt) {
+        frames.writable().capture(simulation, steppedAt);
+        frames.publish();
+    }
+
+    public RenderFrame takeFrame () { return frames.take(); } // the thread drawing: the newest frame
+
+    public double alpha (RenderFrame frame, long now) { // how far now is between the frame's step and the next one (0-1)
+        return Math.clamp((double) (now - frame.steppedAt) / stepNanos, 0, 1);
+    }
+
+    public void framePainted (RenderFrame frame, long now) { // input to display latency of the keys the frame is the first to show
+        frames.painted(frame);
+        PhaseTimings timings = simulation.getTimings();
+        for (int i = 0; i < frame.inputs; i++) timings.record(PhaseTimings.Phase.LATENCY, now - frame.inputTimes[i]);
+        frame.inputs = 0;
+    }
+}
+
+
+// what the renderer draws, copied from the simulation at the end of a step: the painting thread reads it while the
+// simulation's thread goes on with the next steps, so neither waits for the other. the copies keep their objects
+// and arrays from one frame to the next, so a frame allocates nothing once they're as big as the game gets
+class RenderFrame {
+    final Player player;
+    final Ball ball;
+    final BallStorm storm;
+    final ArrayList <Powerup> powerups = new ArrayList<>();
+    final BlockField blocks;
+    final GameClock clock; // the simulation's time when it was copied, for the timers shown
+    final PhaseTimings timings;
+    final SnapshotStore snapshots; // its status can be read from any thread
+    final HighScores highScores; // so can its best games
+    Simulation.GameState state;
+    long tick, sequence; // sequence: the number of the frame, to know when some were skipped
+    long steppedAt; // System.nanoTime() of the step, where the interpolation starts
+    boolean choosing, canRewind;
+    Simulation.Upgrade.upgradeType choice1, choice2;
+    double secondsBack; // how far the pause menu went back in time
+    final long[] inputTimes = new long[64]; // when the keys this frame is the first to show were pressed
+    int inputs;
+
+    RenderFrame (Simulation simulation) {
+        GameConfig config = simulation.getConfig();
+        this.clock = new GameClock(config);
+        this.player = new Player(config);
+        this.ball = new Ball(config, null, clock, null); // only drawn, never ticks
+        this.storm = new BallStorm();
+        this.blocks = new BlockField(simulation.getBlocks());
+        this.timings = simulation.getTimings();
+        this.snapshots = simulation.getSnapshots();
+        this.highScores = simulation.getHighScores();
+    }
+
+    void capture (Simulation simulation, long steppedAt) { // on the simulation's thread, between steps
+        GameConfig config = simulation.getConfig();
+        state = simulation.getState();
+        tick = simulation.getTickCount();
+        this.steppedAt = steppedAt;
+        clock.set(tick);
+        player.copyFrom(simulation.getPlayer());
+        ball.copyFrom(config, simulation.getBall());
+        storm.copyFrom(simulation.getStorm());
+        Powerup.copy(simulation.getPowerups(), powerups);
+        blocks.copyFrom(simulation.getBlocks());
+        Simulation.Upgrade upgrade = simulation.getUpgrade();
+        choosing = upgrade.choosing;
+        choice1 = upgrade.choice1;
+        choice2 = upgrade.choice2;
+        RewindBuffer rewind = simulation.getRewind();
+        canRewind = rewind != null;
+        secondsBack = rewind == null ? 0 : rewind.getSecondsBack();
+    }
+
+    void addInputTime (long time) {
+        if (inputs < inputTimes.length) inputTimes[inputs++] = time;
+    }
+}
+
+
+// hands the frames over from the simulation's thread to the painting one without a lock: three frames, one being
+// written, one being drawn, and the newest finished one in between. publishing swaps the written one with the one in
+// between, taking a frame swaps the drawn one with it if it's newer. the painter always gets the newest frame, and
+// a frame is never written while it's drawn
+class RenderFrames {
+    private static final int FRESH = 4; // set with the index of the frame in between when the painter hasn't taken it
+    static final int COUNT = 3;
+    private final RenderFrame[] frames = new RenderFrame[COUNT];
+    private final AtomicInteger between = new AtomicInteger(2);
+    private int writing = 0, drawing = 1; // only used by their own thread
+    private long published = 0, lastPainted = -1;
+
+    RenderFrames (Simulation simulation) {
+        for (int i = 0; i < frames.length; i++) frames[i] = new RenderFrame(simulation);
+    }
+
+    RenderFrame writable () { return frames[writing]; } // simulation's thread: the frame to fill, then publish()
+
+    void publish () {
+        RenderFrame frame = frames[writing];
+        frame.sequence = published++;
+        writing = between.getAndSet(writing | FRESH) & ~FRESH; // the frame and everything written to it before go to the painter
+        // the frame coming back still has the keys it showed if it was never painted: the next frame shows them
+    }
+
+    RenderFrame take () { // painting thread: the newest frame, the same one again if nothing was published since
+        if ((between.get() & FRESH) != 0) {
+            drawing = between.getAndSet(drawing) & ~FRESH;
+            RenderFrame frame = frames[drawing];
+            // the changed blocks are only those of the frame's step: when frames were skipped, or taken but never painted
+            // (swing drops and merges repaints), redraw the whole field
+            if (frame.sequence != lastPainted + 1) frame.blocks.markAllChanged();
+        }
+        return frames[drawing];
+    }
+
+    void painted (RenderFrame frame) { lastPainted = frame.sequence; } // painting thread, once the frame is drawn
+}
+
+
+// how long each part of a step and of a frame takes. every phase has a histogram with a fixed number of buckets, so
+// measuring is two System.nanoTime calls and an increment, nothing is allocated. the buckets are log-linear: exact up
+// to 16 ns, then 16 per power of two, so every time is counted within 1/16 of its value, however long it is.
+// a phase is only recorded by one thread (the steps' by the simulation's, PAINT and LATENCY by the painting one),
+// the overlay and the dump read them
+class PhaseTimings {
+    enum Phase { INPUT, REWIND, PLAYER, POWERUPS, BALL, FLOATING_POINTS, STORM, BLOCKS, STEP, PAINT, LATENCY } // LATENCY: from a key to the end of the first frame showing it
+    static final Phase[] PHASES = Phase.values();
+    static final PhaseTimings OFF = new PhaseTimings(false); // for games nobody measures (the bot, benchmarks): a branch per lap
+
+    private static final int SUB_BITS = 4, SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS) * SUB_BUCKETS;
+    private final boolean enabled;
+    private final long[][] counts; // [phase][bucket]
+    private final long[] samples, total, max; // nanoseconds
+
+    public PhaseTimings () { this(true); }
+
+    private PhaseTimings (boolean enabled) {
+        this.enabled = enabled;
+        int phases = enabled ? PHASES.length : 0;
+        this.counts = new long[phases][BUCKETS];
+        this.samples = new long[phases];
+        this.total = new long[phases];
+        this.max = new long[phases];
+    }
+
+    public boolean isEnabled () { return enabled; }
+
+    public long start () { return enabled ? System.nanoTime() : 0; }
+
+    public long lap (Phase phase, long since) { // records the time since the last lap, returns when this one ended
+        if (!enabled) return 0;
+        long now = System.nanoTime();
+        record(phase, now - since);
+        return now;
+    }
+
+    public void record (Phase phase, long nanos) {
+        if (!enabled) return;
+        nanos = Math.max(nanos, 0);
+        int p = phase.ordinal();
+        counts[p][bucket(nanos)]++;
+        samples[p]++;
+        total[p] += nanos;
+        if (nanos > max[p]) max[p] = nanos;
+    }
+
+    private static int bucket (long nanos) {
+        if (nanos < SUB_BUCKETS) return (int) nanos;
+        int shift = 63 - Long.numberOfLeadingZeros(nanos) - SUB_BITS; // the highest bit picks the row, the next 4 the bucket in it
+        return (shift + 1) * SUB_BUCKETS + (int) (nanos >>> shift & (SUB_BUCKETS - 1));
+    }
+
+    private static long lowest (int bucket) { // the smallest time counted in the bucket
+        if (bucket < SUB_BUCKETS) return bucket;
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+    }
+
+    private static long highest (int bucket) {
+        return bucket < SUB_BUCKETS ? bucket : lowest(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+    }
+
+    public long getSamples (Phase phase) { return enabled ? samples[phase.ordinal()] : 0; }
+    public long getMax (Phase phase) { return enabled ? max[phase.ordinal()] : 0; }
+
+    public long percentile (Phase phase, double percent) { // nanoseconds, rounded up to the end of the bucket
+        if (getSamples(phase) == 0) return 0;
+        int p = phase.ordinal();
+        long rank = Math.max(1, (long) Math.ceil(samples[p] * percent / 100)), seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += counts[p][b];
+            if (seen >= rank) return Math.min(highest(b), max[p]);
+        }
+        return max[p];
+    }
+
+    public void write (Path path) {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            out.println("# phase samples mean p50 p90 p99 p99.9 max (microseconds)");
+            for (Phase phase : PHASES) {
+                long n = getSamples(phase);
+                out.printf("%s %d %.1f %.1f %.1f %.1f %.1f %.1f%n", phase, n, n == 0 ? 0 : total[phase.ordinal()] / 1e3 / n,
+                    percentile(phase, 50) / 1e3, percentile(phase, 90) / 1e3, percentile(phase, 99) / 1e3, percentile(phase, 99.9) / 1e3, getMax(phase) / 1e3);
+            }
+            out.println("# phase lowest highest samples (nanoseconds, non-empty buckets)");
+            for (Phase phase : PHASES) {
+                for (int b = 0; b < BUCKETS; b++) {
+                    long count = enabled ? counts[phase.ordinal()][b] : 0;
+                    if (count > 0) out.printf("%s %d %d %d%n", phase, lowest(b), highest(b), count);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("couldn't write the timings: " + e.getMessage());
+        }
+    }
+}
+
+
+// writes the inputs of a game to a file, so it can be replayed: same seed plus same inputs on the same steps is the
+// same game. the file is a small header then varints (7 bits per byte, the high bit set when more bytes follow):
+//   header   'B' 'R' 'K' 'I', version byte, seed (8 bytes), endless (1 byte, from version 2 on)
+//   input    steps since the previous record, key code << 1 | pressed
+//   end      steps since the previous record to the end of the game, 0, score at the end (to check a replay),
+//            went back in time (1 byte, the replay needs a RewindBuffer then. older recordings end without it)
+// key code 0 (VK_UNDEFINED) is never recorded, so a 0 marks the end
+class InputRecorder {
+    static final byte[] MAGIC = {'B', 'R', 'K', 'I'};
+    static final int VERSION = 2; // 2: endless boards
+
+    private final DataOutputStream out;
+    private long lastRecordStep = 0, endStep = 0;
+    private int score = 0;
+    private boolean wentBack = false, closed = false;
+
+    public InputRecorder (Path path, GameConfig config) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(config.SEED);
+        out.writeBoolean(config.ENDLESS);
+    }
+
+    // called by the simulation at the end of every step, with the inputs it applied
+    public synchronized void record (long step, List <GameInput> inputs, int score) {
+        if (closed) return;
+        try {
+            for (int i = 0; i < inputs.size(); i++) {
+                GameInput input = inputs.get(i);
+                if (input.keyCode == 0) continue;
+                writeVarint(step - lastRecordStep);
+                writeVarint((long) input.keyCode << 1 | (input.pressed ? 1 : 0));
+                lastRecordStep = step;
+            }
+        } catch (IOException e) {
+            fail(e);
+        }
+        this.endStep = step + 1;
+        this.score = score;
+    }
+
+    public synchronized void wentBack () { wentBack = true; }
+
+    public synchronized void stop (String reason) { // the game can't be replayed past the last step recorded, it ends there
+        if (!closed) System.err.println("input recording stopped: " + reason);
+        close();
+    }
+
+    public synchronized void close () { // may be called from a shutdown hook
+        if (closed) return;
+        try {
+            writeVarint(endStep - lastRecordStep);
+            writeVarint(0);
+            writeVarint(score);
+            out.writeBoolean(wentBack);
+            out.close();
+        } catch (IOException e) {
+            fail(e);
+        }
+        closed = true;
+    }
+
+    private void fail (IOException e) { // a broken recording shouldn't stop the game
+        System.err.println("input recording stopped: " + e.getMessage());
+        closed = true;
+        try { out.close(); } catch (IOException ignored) {}
+    }
+
+    private void writeVarint (long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+}
+
+
+// a recording made by InputRecorder, fed back into a simulation step by step: in the window at normal speed,
+// or headless as fast as possible to measure the ticks per second of a known game
+class InputReplay {
+    private final long seed, endStep;
+    private final boolean endless, wentBack;
+    private final int endScore;
+    private final long[] steps; // the step of each input
+    private final GameInput[] inputs;
+    private final ArrayList <GameInput> stepInputs = new ArrayList<>(); // reused, inputsFor() doesn't allocate
+    private int next = 0;
+
+    private InputReplay (long seed, boolean endless, long[] steps, GameInput[] inputs, long endStep, int endScore, boolean wentBack) {
+        this.seed = seed;
+        this.endless = endless;
+        this.wentBack = wentBack;
+        this.steps = steps;
+        this.inputs = inputs;
+        this.endStep = endStep;
+        this.endScore = endScore;
+    }
+
+    public static InputReplay load (Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            byte[] magic = new byte[InputRecorder.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, InputRecorder.MAGIC)) throw new IOException(path + " is not an input recording");
+            int version = in.readUnsignedByte();
+            if (version < 1 || version > InputRecorder.VERSION) throw new IOException(path + " has version " + version + ", expected 1 to " + InputRecorder.VERSION);
+            long seed = in.readLong();
+            boolean endless = version >= 2 && in.readBoolean();
+
+            long[] steps = new long[64];
+            GameInput[] inputs = new GameInput[64];
+            int count = 0;
+            long step = 0;
+            while (true) {
+                step += readVarint(in);
+                long code = readVarint(in);
+                if (code == 0) break;
+                if (count == steps.length) {
+                    steps = Arrays.copyOf(steps, count * 2);
+                    inputs = Arrays.copyOf(inputs, count * 2);
+                }
+                steps[count] = step;
+                inputs[count++] = new GameInput((int) (code >>> 1), (code & 1) == 1);
+            }
+            int score = (int) readVarint(in);
+            boolean wentBack = in.read() == 1; // a recording made before rewinding existed ends without it
+            return new InputReplay(seed, endless, Arrays.copyOf(steps, count), Arrays.copyOf(inputs, count), step, score, wentBack);
+        }
+    }
 
-        window.pack(); //fits the window to the components
-        window.setLocationRelativeTo(null); // opens window in the center of the screen
-        window.setResizable(false); // not allow the user to resize the window
-        window.setVisible(true);
+    private static long readVarint (DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = in.readUnsignedByte(); // EOFException if the file was cut
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+
+    public GameConfig createConfig () { return new GameConfig(seed, endless); } // the config the recording was made with
+    public long getEndStep () { return endStep; }
+    public boolean wentBack () { return wentBack; } // the simulation needs a RewindBuffer to play it
+
+    public List <GameInput> inputsFor (long step) { // steps have to be asked for in order
+        stepInputs.clear();
+        while (next < steps.length && steps[next] < step) next++;
+        while (next < steps.length && steps[next] == step) stepInputs.add(inputs[next++]);
+        return stepInputs;
+    }
+
+    public void rewind () { next = 0; }
+
+    public boolean matches (Simulation simulation) {
+        return simulation.getStepsPlayed() == endStep && simulation.getBall().getScore() == endScore;
+    }
+
+    public void printResult (Simulation simulation) {
+        System.out.println("replay finished, score " + simulation.getBall().getScore() + (matches(simulation) ? " (matches the recording)" : " (DESYNC, recorded " + endScore + ")"));
     }
-    public static void main (String[] arg) {
-        initWindow();
+
+    // plays the recording without a window, as fast as possible, and prints how fast it went. returns false on a desync
+    public boolean runHeadless (int repeats) {
+        long[] nanos = new long[repeats];
+        Simulation simulation = null;
+        for (int r = 0; r < repeats; r++) {
+            rewind();
+            simulation = new Simulation(createConfig());
+            if (wentBack) simulation.setRewind(new RewindBuffer(simulation.getConfig())); // it costs time, only when it's needed
+            long start = System.nanoTime();
+            for (long step = 0; step < endStep; step++) simulation.step(inputsFor(step));
+            nanos[r] = System.nanoTime() - start;
+        }
+        Arrays.sort(nanos);
+        long median = nanos[repeats / 2];
+        System.out.printf("%d steps, %d ticks in %.1f ms (median of %d): %.0f ticks/s%n", endStep, simulation.getTickCount(), median / 1e6, repeats, simulation.getTickCount() * 1e9 / median);
+        printResult(simulation);
+        return matches(simulation);
     }
 }
 
 
-class GameConfig {
-    public final int TILE_WIDTH = 60, TILE_HEIGHT = 30, ROWS = 15, COLUMNS = 20, SIDE_SIZE = 130;
-    public final int WIDTH_SCREEN = TILE_WIDTH*COLUMNS + 2 * SIDE_SIZE, HEIGHT_SCREEN = TILE_HEIGHT*ROWS + 4 * SIDE_SIZE;
-    public final int DELAY = 25;
+// a whole game at one step, in a byte array: the random streams, every position to the last bit, the menus and the
+// statistics, so a game carried on from a snapshot plays exactly like the original would have.
+//   header   'B' 'R' 'K' 'S', version byte, seed (8 bytes), columns, rows (4 bytes each), endless (1 byte)
+//   state    see Simulation.writeState, fixed size numbers (DataOutput)
+//   crc32    of everything before it, checked before anything is restored, so a damaged file can't load half a game
+// snapshots from another version, another grid size or the other kind of board are refused, there's no conversion
+class Snapshot {
+    static final byte[] MAGIC = {'B', 'R', 'K', 'S'};
+    static final int VERSION = 3; // 2: endless boards, 3: timers are ticks of the game clock
+
+    public static byte[] capture (Simulation simulation) { // on the thread that steps the simulation, between steps
+        GameConfig config = simulation.getConfig();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(simulation.getSeed());
+            out.writeInt(config.COLUMNS);
+            out.writeInt(config.ROWS);
+            out.writeBoolean(config.ENDLESS);
+            simulation.writeState(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // writing to memory doesn't fail
+        }
+        byte[] state = bytes.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(state);
+        byte[] snapshot = Arrays.copyOf(state, state.length + 4);
+        ByteBuffer.wrap(snapshot).putInt(state.length, (int) crc.getValue());
+        return snapshot;
+    }
+
+    public static void restore (Simulation simulation, byte[] snapshot) throws IOException { // replaces the state of the simulation
+        DataInputStream in = open(snapshot, simulation.getConfig());
+        long seed = in.readLong(); // the random streams come back with the rest of the state
+        readState(simulation, in);
+        simulation.setSeed(seed);
+    }
+
+    public static Simulation load (Path path) throws IOException { // a new simulation from a file, for the tools
+        byte[] snapshot = Files.readAllBytes(path);
+        boolean endless = snapshot.length > ENDLESS_OFFSET && snapshot[ENDLESS_OFFSET] != 0;
+        DataInputStream in = open(snapshot, new GameConfig(0, endless)); // any config has the grid size to check against
+        Simulation simulation = new Simulation(new GameConfig(in.readLong(), endless));
+        readState(simulation, in);
+        return simulation;
+    }
+
+    private static final int ENDLESS_OFFSET = 4 + 1 + 8 + 8; // magic, version, seed, columns and rows
+
+    private static DataInputStream open (byte[] snapshot, GameConfig config) throws IOException { // checks everything but the state
+        int length = snapshot.length - 4;
+        if (length < ENDLESS_OFFSET + 1 || !Arrays.equals(snapshot, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) throw new IOException("not a snapshot");
+        int version = snapshot[MAGIC.length];
+        if (version != VERSION) throw new IOException("snapshot version " + version + ", expected " + VERSION);
+        CRC32 crc = new CRC32();
+        crc.update(snapshot, 0, length);
+        if ((int) crc.getValue() != ByteBuffer.wrap(snapshot).getInt(length)) throw new IOException("damaged snapshot (bad checksum)");
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot, MAGIC.length + 1, length - MAGIC.length - 1));
+        ByteBuffer grid = ByteBuffer.wrap(snapshot, MAGIC.length + 9, 8);
+        int columns = grid.getInt(), rows = grid.getInt();
+        if (columns != config.COLUMNS || rows != config.ROWS) throw new IOException("snapshot of a " + columns + "x" + rows + " board, this one is " + config.COLUMNS + "x" + config.ROWS);
+        if ((snapshot[ENDLESS_OFFSET] != 0) != config.ENDLESS) throw new IOException(config.ENDLESS ? "snapshot of a normal board" : "snapshot of an endless board");
+        return in;
+    }
+
+    private static void readState (Simulation simulation, DataInputStream in) throws IOException {
+        in.readInt(); // columns, rows and the kind of board, checked by open()
+        in.readInt();
+        in.readBoolean();
+        simulation.readState(in);
+        if (in.available() != 0) throw new IOException("snapshot has " + in.available() + " bytes too many");
+    }
 }
 
 
-class Board extends JPanel implements ActionListener, KeyListener {
-    private final Timer timer;
-    private final GameConfig config;
-    private final Player player;
-    private final Block[][] blocksMatrix;
-    private final Ball ball;
-    private final ArrayList <Powerup> powerups; // list of the powerups currently active on screen
-    private Powerup activePowerup = null;
-    GameState state;
-    Upgrade upgrade;
+// the snapshot file of the pause menu. the game is captured on the game's thread, which only copies a few kilobytes,
+// and the file is written and read on a background thread, so a slow disk never holds up a frame.
+// a save goes to a temporary file that then replaces the old one, a crash while saving keeps the previous snapshot
+class SnapshotStore {
+    private final Path path;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "snapshot io");
+        thread.setDaemon(true); // doesn't keep the game open
+        return thread;
+    });
+    private volatile byte[] loaded; // read from the file, restored by the next step
+    private volatile String status = ""; // what the last save or load did, shown in the pause menu
+
+    public SnapshotStore (Path path) {
+        this.path = path;
+    }
+
+    public String getStatus () { return status; }
+
+    public void save (Simulation simulation) {
+        byte[] snapshot = Snapshot.capture(simulation);
+        status = "Saving...";
+        io.execute(() -> {
+            try {
+                write(snapshot);
+                status = "Saved to " + path.getFileName();
+            } catch (IOException e) {
+                status = "Save failed: " + e.getMessage();
+            }
+        });
+    }
 
-    public enum GameState {
-        MENU,
-        PLAYING,
-        PAUSE,
-        UPGRADE,
-        GAME_OVER
+    private void write (byte[] snapshot) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(snapshot);
+            while (buffer.hasRemaining()) channel.write(buffer);
+            channel.force(false); // on the disk before it replaces the old one
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
     }
 
-    public Board (GameConfig c) {
-        this.config = c;
+    public void load () {
+        status = "Loading...";
+        io.execute(() -> {
+            try {
+                loaded = Files.readAllBytes(path);
+            } catch (IOException e) {
+                status = "Load failed: " + e.getMessage();
+            }
+        });
+    }
+
+    public boolean applyLoaded (Simulation simulation) { // called by the simulation between steps, true if it's now another game
+        byte[] snapshot = loaded;
+        if (snapshot == null) return false;
+        loaded = null;
+        try {
+            Snapshot.restore(simulation, snapshot);
+            status = "Loaded " + path.getFileName();
+            return true;
+        } catch (IOException e) {
+            status = "Load failed: " + e.getMessage();
+            return false;
+        }
+    }
+}
 
-        setPreferredSize(new Dimension(config.WIDTH_SCREEN, config.HEIGHT_SCREEN));
-        setBackground(Color.black);
 
-        this.state = GameState.PLAYING;
-        this.player = new Player(config);
-        this.blocksMatrix = Block.createAllBlocks(config);
-        this.ball = new Ball(config);
+// the best scores, kept in a log file that's only ever appended to: every finished game is one record of a fixed size
+// with a checksum, and no record is rewritten. the writes are done by a background thread, which writes the games that
+// finished since it last ran and then forces them to the disk once, so the game never waits for the disk.
+// a crash can only damage the records at the end, the ones being written: loading cuts the file after the last record
+// whose checksum matches, so the next record starts in the right place. a damaged record with good ones after it
+// (a bad sector, not a crash) is skipped and reported, the ones after it are kept.
+// the best TOP games are kept sorted in memory, that's all the game over screen shows.
+// file: "BRKH", version byte, then records of score int, ticks long, seed long, endless byte, time long, CRC32 int
+class HighScores {
+    static final int VERSION = 1;
+    static final int TOP = 10;
+    private static final byte[] MAGIC = {'B', 'R', 'K', 'H'};
+    private static final int HEADER = MAGIC.length + 1, RECORD = 4 + 8 + 8 + 1 + 8 + 4;
+
+    static final class Entry {
+        final int score;
+        final long ticks, seed, time; // time: System.currentTimeMillis() when the game ended
+        final boolean endless;
+
+        Entry (int score, long ticks, long seed, boolean endless, long time) {
+            this.score = score;
+            this.ticks = ticks;
+            this.seed = seed;
+            this.endless = endless;
+            this.time = time;
+        }
+    }
 
-        this.powerups = new ArrayList<>();
-        this.upgrade = new Upgrade();
-        this.timer = new Timer(config.DELAY, this); // needs to have a listener
-        this.timer.start();
+    private final Path path;
+    private final ExecutorService io = Executors.newSingleThreadExecutor(task -> {
+        Thread thread = new Thread(task, "high scores io");
+        thread.setDaemon(true); // close() waits for the last writes
+        return thread;
+    });
+    private final ConcurrentLinkedQueue<Entry> pending = new ConcurrentLinkedQueue<>(); // finished games not written yet
+    private final AtomicInteger flushes = new AtomicInteger(); // flushes queued on the io thread, at most one is needed
+    private final CRC32 crc = new CRC32(); // the rest is only used on the io thread
+    private FileChannel channel; // null if the file couldn't be opened or written
+    private ByteBuffer buffer = ByteBuffer.allocate(RECORD * 4);
+    private volatile Entry[] top = new Entry[0]; // best first, replaced as a whole so any thread can read it
+    private volatile String status = "";
+    private String loadProblems = ""; // what open() found wrong with the file, stays in the status
+
+    public HighScores (Path path) {
+        this.path = path;
+        io.execute(this::open); // before any write, the io thread runs its tasks in order
+    }
+
+    public Entry[] getTop () { return top; }
+    public String getStatus () { return status; }
+
+    public void add (int score, long ticks, long seed, boolean endless) { // any thread, never waits for the disk
+        pending.add(new Entry(score, ticks, seed, endless, System.currentTimeMillis()));
+        if (flushes.getAndIncrement() > 0) return; // the queued flush will write it too
+        try {
+            io.execute(this::flush);
+        } catch (RejectedExecutionException e) { // the game is closing, close() wrote what it could
+        }
     }
 
-    @Override
-    protected void paintComponent (Graphics g) {
-        super.paintComponent(g);
-        switch (state) {
-            case GameState.PLAYING:
-                drawPlaying(g);
+    public void close () {
+        io.shutdown(); // the queued flushes still run
+        try {
+            io.awaitTermination(2, TimeUnit.SECONDS);
+        } catch (InterruptedException ignored) {}
+    }
+
+    private void open () {
+        try {
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = channel.size(), end = load(size);
+            if (end < size) { // a torn write from a crash
+                channel.truncate(end);
+                channel.force(false);
+                report("dropped " + (size - end) + " bytes at the end of " + path.getFileName());
+            }
+            channel.position(end);
+        } catch (IOException e) {
+            status = "High scores not saved: " + e.getMessage();
+            closeChannel();
+        }
+    }
+
+    private long load (long size) throws IOException { // where the valid records end
+        if (size < HEADER) { // a new file, or the game crashed while creating it
+            channel.truncate(0);
+            write(ByteBuffer.allocate(HEADER).put(MAGIC).put((byte) VERSION).flip(), 0);
+            channel.force(false);
+            return HEADER;
+        }
+        if (size > Integer.MAX_VALUE) throw new IOException(path.getFileName() + " is too big");
+        ByteBuffer data = ByteBuffer.allocate((int) size);
+        while (data.hasRemaining() && channel.read(data, data.position()) >= 0) {}
+        byte[] magic = new byte[MAGIC.length];
+        data.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC)) throw new IOException(path.getFileName() + " isn't a high score file");
+        if (data.get(MAGIC.length) != VERSION) throw new IOException(path.getFileName() + " is from another version");
+
+        Entry[] best = top;
+        int end = HEADER, damaged = 0, damagedAtEnd = 0; // damagedAtEnd: since the last good record, cut off with the rest
+        for (int position = HEADER; size - position >= RECORD; position += RECORD) {
+            crc.reset();
+            crc.update(data.array(), position, RECORD - 4);
+            if ((int) crc.getValue() != data.getInt(position + RECORD - 4)) {
+                damagedAtEnd++;
+                continue;
+            }
+            best = insert(best, read(data, position));
+            damaged += damagedAtEnd;
+            damagedAtEnd = 0;
+            end = position + RECORD;
+        }
+        if (damaged > 0) report("skipped " + damaged + (damaged == 1 ? " damaged record in " : " damaged records in ") + path.getFileName());
+        top = best;
+        return end;
+    }
+
+    private void report (String problem) { // on the game over screen, and in the console
+        System.err.println("high scores: " + problem);
+        loadProblems = loadProblems.isEmpty() ? "High scores: " + problem : loadProblems + ", " + problem;
+        status = loadProblems;
+    }
+
+    private void flush () {
+        int queued = flushes.get();
+        Entry[] best = top;
+        buffer.clear();
+        for (Entry entry = pending.poll(); entry != null; entry = pending.poll()) {
+            if (buffer.remaining() < RECORD) buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer.flip());
+            int start = buffer.position();
+            buffer.putInt(entry.score).putLong(entry.ticks).putLong(entry.seed).put((byte) (entry.endless ? 1 : 0)).putLong(entry.time);
+            crc.reset();
+            crc.update(buffer.array(), start, RECORD - 4);
+            buffer.putInt((int) crc.getValue());
+            best = insert(best, entry);
+        }
+        if (channel != null && buffer.position() > 0) {
+            long end = 0;
+            try {
+                end = channel.position();
+                write(buffer.flip(), end);
+                channel.force(false); // once for all the games written
+                channel.position(end + buffer.limit());
+                status = loadProblems; // a failed write before this one is over
+            } catch (IOException e) {
+                status = "High scores not saved: " + e.getMessage();
+                try {
+                    channel.truncate(end); // no half record that the next ones would come after
+                } catch (IOException again) {
+                    closeChannel();
+                }
+            }
+        }
+        top = best; // shown even if it couldn't be saved
+        if (flushes.addAndGet(-queued) > 0) flush(); // games added while writing, their flush wasn't queued
+    }
+
+    private void write (ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) position += channel.write(data, position);
+    }
+
+    private void closeChannel () {
+        try {
+            if (channel != null) channel.close();
+        } catch (IOException ignored) {}
+        channel = null;
+    }
+
+    private static Entry read (ByteBuffer data, int position) {
+        return new Entry(data.getInt(position), data.getLong(position + 4), data.getLong(position + 12),
+            data.get(position + 20) != 0, data.getLong(position + 21));
+    }
+
+    private static Entry[] insert (Entry[] top, Entry entry) { // a copy with the entry in its place, an equal score stays behind the older one
+        int at = top.length;
+        while (at > 0 && top[at - 1].score < entry.score) at--;
+        if (at >= TOP) return top;
+        Entry[] updated = new Entry[Math.min(top.length + 1, TOP)];
+        System.arraycopy(top, 0, updated, 0, at);
+        updated[at] = entry;
+        System.arraycopy(top, at, updated, at + 1, updated.length - at - 1);
+        return updated;
+    }
+}
+
+
+// the last seconds of a game, so the pause menu can go back in time. the state before every tick is written like a
+// snapshot (Simulation.writeState), but it's only kept whole every KEYFRAME_INTERVAL ticks: the ticks in between keep
+// the bytes that changed since the tick before, a small part of the state. the records are written one after the other
+// in a fixed byte array used as a ring, and the oldest ones are dropped when the memory or the time runs out.
+// a keyframe is dropped with all its deltas, so with big states (a huge storm) the keyframes come more often: a
+// keyframe and its deltas never take more than KEYFRAME_SHARE of the memory, dropping them leaves the rest of it.
+// going back to a tick decodes its keyframe and applies the deltas up to it, at most a second of them.
+// a record is varints: the state's length, then (unchanged bytes to skip, changed bytes, the changed bytes) up to
+// that length. a keyframe is the same thing against an empty state, a single run of changed bytes
+class RewindBuffer {
+    static final int KEYFRAME_INTERVAL = 40; // ticks, at most
+    private static final int KEYFRAME_SHARE = 8; // a keyframe and its deltas take at most 1/8 of the memory
+    static final int SCRUB_TICKS = 10; // how far one key press in the pause menu goes
+    private static final int MIN_UNCHANGED_RUN = 4; // shorter unchanged runs cost more to skip than to write
+
+    private final int delay;
+    private final byte[] data; // the records, a ring
+    private final long[] ticks; // a ring too, one entry per record, first is the oldest. one record per tick
+    private final int[] offsets, lengths;
+    private final boolean[] keyframes;
+    private int first = 0, count = 0, writeOffset = 0, readOffset;
+    private long lastKeyframeTick;
+    private int lastDeltaLength = 1; // to guess how many deltas fit after a keyframe
+    private boolean needKeyframe = true; // the last state written isn't the newest record's
+
+    private StateBuffer state = new StateBuffer(), previous = new StateBuffer(); // the tick being recorded and the one before
+    private byte[] encoded = new byte[4096]; // the record being written, before it goes into the ring
+    private byte[] restored = new byte[4096]; // the state being decoded
+    private long position = -1; // the tick shown by the pause menu, -1 when it's the game as it was paused
+
+    static class StateBuffer extends ByteArrayOutputStream { // reused every tick, its array only grows
+        final DataOutputStream out = new DataOutputStream(this);
+
+        StateBuffer () { super(4096); }
+        byte[] bytes () { return buf; }
+    }
+
+    public RewindBuffer (GameConfig config) {
+        this.delay = config.DELAY;
+        this.data = new byte[config.REWIND_MEMORY];
+        int records = config.REWIND_SECONDS * 1000 / config.DELAY + 1;
+        this.ticks = new long[records];
+        this.offsets = new int[records];
+        this.lengths = new int[records];
+        this.keyframes = new boolean[records];
+    }
+
+    public void clear () {
+        count = 0;
+        writeOffset = 0;
+        position = -1;
+        needKeyframe = true;
+    }
+
+    public double getSecondsBack () { // how far back the pause menu went
+        return position < 0 ? 0 : (ticks[newest()] - position) * delay / 1000.0;
+    }
+
+    private int newest () { return (first + count - 1) % ticks.length; }
+
+    public void record (Simulation simulation) { // the state before a tick, called by the simulation
+        long tick = simulation.getTickCount();
+        position = -1;
+        while (count > 0 && ticks[newest()] >= tick) { // went back in time and played on: what came after is gone
+            writeOffset = offsets[newest()];
+            count--;
+            needKeyframe = true;
+        }
+
+        state.reset();
+        try {
+            simulation.writeState(state.out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // writing to memory doesn't fail
+        }
+        boolean keyframe = needKeyframe || count == 0 || tick - lastKeyframeTick >= keyframeInterval();
+        store(tick, encode(keyframe ? 0 : previous.size()), keyframe);
+
+        StateBuffer swap = previous; // the next delta is against this tick
+        previous = state;
+        state = swap;
+    }
+
+    private int keyframeInterval () { // the state is about as long as its keyframe
+        long deltas = ((long) data.length / KEYFRAME_SHARE - state.size()) / lastDeltaLength;
+        return Math.clamp(deltas + 1, 1, KEYFRAME_INTERVAL);
+    }
+
+    private int encode (int previousLength) { // the current state against the previous one (its first previousLength bytes)
+        byte[] current = state.bytes(), before = previous.bytes();
+        int length = state.size();
+        if (encoded.length < length * 3 + 16) encoded = new byte[length * 3 + 16]; // the most runs can take
+        int out = writeVarint(encoded, 0, length);
+        int i = 0;
+        while (i < length) {
+            int unchanged = i;
+            while (i < length && i < previousLength && current[i] == before[i]) i++;
+            int changed = i;
+            while (i < length && !unchangedRun(current, before, i, length, previousLength)) i++;
+            out = writeVarint(encoded, out, changed - unchanged);
+            out = writeVarint(encoded, out, i - changed);
+            System.arraycopy(current, changed, encoded, out, i - changed);
+            out += i - changed;
+        }
+        return out;
+    }
+
+    private static boolean unchangedRun (byte[] current, byte[] before, int from, int length, int previousLength) {
+        int to = Math.min(from + MIN_UNCHANGED_RUN, length);
+        if (to > previousLength) return false;
+        for (int i = from; i < to; i++) if (current[i] != before[i]) return false;
+        return true;
+    }
+
+    private void store (long tick, int length, boolean keyframe) {
+        if (length > data.length) { // more than the whole memory (a huge storm), nothing can be kept
+            clear();
+            return;
+        }
+        if (count == ticks.length) dropOldest();
+        if (writeOffset + length > data.length) { // doesn't fit before the end: the records left there are the oldest, go around
+            while (count > 0 && offsets[first] >= writeOffset) dropOldest();
+            writeOffset = 0;
+        }
+        while (count > 0 && overlaps(first, writeOffset, length)) dropOldest();
+        if (count == 0 && !keyframe) { // the keyframe of this delta was just dropped
+            store(tick, encode(0), true);
+            return;
+        }
+
+        int r = (first + count) % ticks.length;
+        ticks[r] = tick;
+        offsets[r] = writeOffset;
+        lengths[r] = length;
+        keyframes[r] = keyframe;
+        System.arraycopy(encoded, 0, data, writeOffset, length);
+        writeOffset += length;
+        count++;
+        if (keyframe) lastKeyframeTick = tick;
+        else lastDeltaLength = Math.max(length, 1);
+        needKeyframe = false;
+    }
+
+    private void dropOldest () {
+        do { // a delta without its keyframe can't be decoded, it goes too
+            first = (first + 1) % ticks.length;
+            count--;
+        } while (count > 0 && !keyframes[first]);
+    }
+
+    private boolean overlaps (int r, int offset, int length) {
+        return offsets[r] < offset + length && offsets[r] + lengths[r] > offset;
+    }
+
+    public void scrub (Simulation simulation, int tickDelta) { // moves the game shown by the pause menu back or forward
+        if (position < 0) { // keep the tick the game was paused on, to be able to come back to it
+            record(simulation);
+            if (count == 0) return;
+            position = ticks[newest()];
+        }
+        long target = Math.clamp(position + tickDelta, ticks[first], ticks[newest()]);
+        if (target == position) return;
+
+        int index = (int) (target - ticks[first]);
+        int key = index;
+        while (!keyframes[(first + key) % ticks.length]) key--;
+        int length = 0;
+        for (int i = key; i <= index; i++) length = decode((first + i) % ticks.length);
+        try {
+            simulation.readState(new DataInputStream(new ByteArrayInputStream(restored, 0, length)));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e); // the bytes were written by writeState
+        }
+        position = target;
+    }
+
+    private int decode (int r) { // applies a record to the restored state, returns the length of the state
+        readOffset = offsets[r];
+        int length = readVarint();
+        if (restored.length < length) restored = Arrays.copyOf(restored, length);
+        int i = 0;
+        while (i < length) {
+            i += readVarint();
+            int changed = readVarint();
+            System.arraycopy(data, readOffset, restored, i, changed);
+            readOffset += changed;
+            i += changed;
+        }
+        return length;
+    }
+
+    private static int writeVarint (byte[] array, int offset, int value) {
+        while ((value & ~0x7F) != 0) {
+            array[offset++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        array[offset++] = (byte) value;
+        return offset;
+    }
+
+    private int readVarint () {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[readOffset++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+    }
+}
+
+
+// draws a RenderFrame of a simulation, used both by the swing board and by the active renderer
+class Renderer {
+    private static final Color TRANSPARENT_BLACK = new Color(25,25,25, 200);
+    private final GameConfig config;
+    private RenderFrame frame; // the one being drawn
+    private BufferedImage backgroundLayer; // grid and borders, drawn once
+    private BufferedImage fieldLayer; // background plus the blocks, only the tiles that changed are redrawn
+    private long layerScrolledRows; // endless board: the rows the field layer was drawn for
+    private int[] redrawCells = new int[0]; // the blocks around the changed tiles, drawn again together
+    private long[] redrawQueued = new long[0]; // one bit per cell, so a block is queued only once
+
+    // the hud texts are only rebuilt when their value changes, not every frame
+    private String scoreText, livesText, cooldownText;
+    private int livesX, scoreX, cooldownX; // where the texts start, measured when they change
+    private boolean showTimings; // the F3 overlay
+    private final String[][] timingTexts = new String[PhaseTimings.PHASES.length][3]; // p50, p99, max of every phase
+    private long timingTextsAt; // when they were last computed
+    private static final long TIMINGS_REFRESH = 500_000_000; // nanoseconds, the numbers are readable and cost nothing
+    private static final int TIMINGS_LINE = 14, TIMINGS_WIDTH = 290;
+    private final PointTexts pointTexts = new PointTexts(64);
+    private int scoreShown = -1, livesShown = -1, cooldownShown = -2;
+
+    public Renderer (GameConfig config) {
+        this.config = config;
+    }
+
+    public void draw (Graphics g, RenderFrame frame, double alpha) {
+        this.frame = frame;
+        g.setColor(Color.black);
+        g.fillRect(0, 0, config.WIDTH_SCREEN, config.HEIGHT_SCREEN);
+        switch (frame.state) {
+            case PLAYING:
+                drawPlaying(g, frame, alpha);
                 break;
             case PAUSE:
-                drawPlaying(g);
+                drawPlaying(g, frame, alpha);
                 drawPause(g);
                 break;
             case UPGRADE:
-                drawPlaying(g);
-                upgrade.draw(g);
+                drawPlaying(g, frame, alpha);
+                drawUpgrade(g);
                 break;
-            case GameState.GAME_OVER:
-                drawGameOver(g);
+            case GAME_OVER:
+                drawGameOver(g, frame);
                 break;
             default:
                 break;
         }
+        if (showTimings) drawTimings(g);
+    }
+
+    public void toggleTimings () { showTimings = !showTimings; }
+
+    public void addTimingsArea (DirtyArea dirty) { // the numbers change while playing
+        if (showTimings) dirty.add(config.SIDE_SIZE, config.SIDE_SIZE, TIMINGS_WIDTH + 1, (PhaseTimings.PHASES.length + 1) * TIMINGS_LINE + 9);
+    }
+
+    private void drawTimings (Graphics g) { // p50, p99 and max of every phase in microseconds, over the whole game
+        PhaseTimings timings = frame.timings;
+        long now = System.nanoTime();
+        if (timingTexts[0][0] == null || now - timingTextsAt >= TIMINGS_REFRESH) {
+            timingTextsAt = now;
+            for (PhaseTimings.Phase phase : PhaseTimings.PHASES) {
+                String[] texts = timingTexts[phase.ordinal()];
+                texts[0] = String.format("%.1f", timings.percentile(phase, 50) / 1e3);
+                texts[1] = String.format("%.1f", timings.percentile(phase, 99) / 1e3);
+                texts[2] = String.format("%.1f", timings.getMax(phase) / 1e3);
+            }
+        }
+        int x = config.SIDE_SIZE, y = config.SIDE_SIZE;
+        drawTransparentSquare(g, x, y, TIMINGS_WIDTH, (PhaseTimings.PHASES.length + 1) * TIMINGS_LINE + 8);
+        g.setColor(Color.white);
+        x += 6;
+        y += TIMINGS_LINE;
+        g.drawString(timings.isEnabled() ? "phase (us)" : "not measured", x, y);
+        g.drawString("p50", x + 120, y);
+        g.drawString("p99", x + 170, y);
+        g.drawString("max", x + 225, y);
+        if (!timings.isEnabled()) return;
+        for (PhaseTimings.Phase phase : PhaseTimings.PHASES) {
+            String[] texts = timingTexts[phase.ordinal()];
+            y += TIMINGS_LINE;
+            g.drawString(phase.name(), x, y);
+            g.drawString(texts[0], x + 120, y);
+            g.drawString(texts[1], x + 170, y);
+            g.drawString(texts[2], x + 225, y);
+        }
     }
 
-    private void drawPlaying (Graphics g) {
-        drawBackground(g);
+    void drawPlaying (Graphics g, RenderFrame frame, double alpha) {
+        this.frame = frame;
+        updateFieldLayer();
+        BlockField blocks = frame.blocks;
+        if (blocks.isEndless()) { // the layer is a row taller than the board and moves with it, only what's on the board shows
+            int width = config.COLUMNS*config.TILE_WIDTH, height = config.ROWS*config.TILE_HEIGHT;
+            Shape clip = g.getClip();
+            g.clipRect(config.SIDE_SIZE, config.SIDE_SIZE, width + 1, height + 1);
+            g.drawImage(fieldLayer, config.SIDE_SIZE, blocks.getOriginY(), null);
+            g.setClip(clip);
+            g.setColor(Color.darkGray);
+            g.drawRect(config.SIDE_SIZE, config.SIDE_SIZE, width, height);
+        }
+        else g.drawImage(fieldLayer, config.SIDE_SIZE, config.SIDE_SIZE, null);
         drawScore(g);
-        player.draw(g);
-        for (Block[] array : blocksMatrix) for (Block block : array) if (block != null) block.draw(g, config);
-        ball.draw(g);
-        if (! powerups.isEmpty()) for (Powerup pw : powerups) pw.draw(g);
+        frame.player.draw(g, alpha);
+        frame.ball.draw(g, pointTexts, alpha);
+        frame.storm.draw(g, alpha);
+        ArrayList <Powerup> powerups = frame.powerups;
+        for (int i = 0; i < powerups.size(); i++) powerups.get(i).draw(g, frame.clock, alpha);
     }
 
     private void drawTransparentSquare (Graphics g, int x, int y, int width, int height) {
-        Color blackTransparent = new Color(25,25,25, 200);
-
-        g.setColor(blackTransparent);
+        g.setColor(TRANSPARENT_BLACK);
         g.fillRect(x,y, width, height);
     }
 
     private void drawPause (Graphics g) {
-        int width = getWidth(), height = getHeight();
+        int width = config.WIDTH_SCREEN, height = config.HEIGHT_SCREEN;
         int pauseWidth = width/2, pauseHeight = height/2;
 
         drawTransparentSquare (g, width /4,height/4, pauseWidth, pauseHeight);
@@ -122,254 +1977,574 @@ class Board extends JPanel implements ActionListener, KeyListener {
         g.drawString(text1, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(text1) / 2, pauseHeight/4 + height/4);
         g.drawString(text2, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(text2) / 2, pauseHeight*3/5 + height/4);
         g.drawString(text3, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(text3) / 2, pauseHeight*4/5 + height/4);
+
+        if (frame.canRewind) {
+            double back = frame.secondsBack;
+            String text5 = back > 0 ? String.format("LEFT and RIGHT to go back in time (%.2f s back)", back) : "LEFT and RIGHT to go back in time";
+            g.drawString(text5, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(text5) / 2, pauseHeight/2 + height/4);
+        }
+
+        SnapshotStore snapshots = frame.snapshots;
+        if (snapshots == null) return;
+        String text4 = "Press 'S' to save the game, 'L' to load the saved one";
+        String status = snapshots.getStatus();
+        g.drawString(text4, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(text4) / 2, pauseHeight*7/10 + height/4);
+        g.drawString(status, pauseWidth/2 + width/4 - g.getFontMetrics().stringWidth(status) / 2, pauseHeight*2/5 + height/4);
+    }
+
+    private void drawUpgrade (Graphics g) { // drawing the upgrade menu
+        int width = config.WIDTH_SCREEN, height = config.HEIGHT_SCREEN;
+        int pauseWidth = width/2, pauseHeight = height/2;
+        int pauseX = width/4, pauseY = height/4;
+        drawTransparentSquare (g, pauseX,pauseY, pauseWidth, pauseHeight);
+
+        int squareWidth = pauseWidth/3, squareHeight = pauseHeight/5, squareY = pauseHeight/2 + pauseY;
+        int square1X = pauseX + 10, square2X = pauseWidth + pauseX - squareWidth - 10;
+        g.setColor(Color.BLACK);
+        g.fillRect(square1X, squareY, squareWidth, squareHeight);
+        g.fillRect(square2X, squareY, squareWidth, squareHeight);
+
+        g.setColor(Color.WHITE);
+        if (frame.choosing) g.drawRect(square2X, squareY, squareWidth, squareHeight);
+        else g.drawRect(square1X, squareY, squareWidth, squareHeight);
+
+        String choice1 = frame.choice1.toString();
+        String choice2 = frame.choice2.toString();
+        String text = "Choose one upgrade";
+        g.drawString(text, pauseWidth / 2 - g.getFontMetrics().stringWidth(text) / 2 + pauseX, pauseHeight / 5 + pauseY);
+        g.drawString(choice1, square1X + squareWidth/2 - g.getFontMetrics().stringWidth(choice1) / 2, squareY + squareHeight/2);
+        g.drawString(choice2, square2X + squareWidth/2 - g.getFontMetrics().stringWidth(choice1) / 2, squareY + squareHeight/2);
+    }
+
+    private void drawGameOver(Graphics g, RenderFrame frame) {
+        g.setColor(Color.BLACK);
+        g.fillRect(0,0, config.WIDTH_SCREEN, config.HEIGHT_SCREEN);
+
+        String text = "Game over!";
+        g.setColor(Color.WHITE);
+        g.drawString(text, config.WIDTH_SCREEN / 2 - g.getFontMetrics().stringWidth(text) / 2, config.HEIGHT_SCREEN / 2);
+
+        HighScores highScores = frame.highScores;
+        if (highScores == null) return;
+        int lineHeight = g.getFontMetrics().getHeight(), y = config.HEIGHT_SCREEN / 2 + lineHeight * 2;
+        String score = "Score: " + frame.ball.getScore();
+        g.drawString(score, config.WIDTH_SCREEN / 2 - g.getFontMetrics().stringWidth(score) / 2, y);
+        HighScores.Entry[] top = highScores.getTop(); // the game that just ended shows up once it's written
+        for (int i = 0; i < Math.min(top.length, 5); i++) {
+            y += lineHeight;
+            String line = "Highscore " + (i + 1) + ": " + top[i].score + (top[i].endless ? " (endless)" : "");
+            g.drawString(line, config.WIDTH_SCREEN / 2 - g.getFontMetrics().stringWidth(line) / 2, y);
+        }
+        String status = highScores.getStatus();
+        g.drawString(status, config.WIDTH_SCREEN / 2 - g.getFontMetrics().stringWidth(status) / 2, y + lineHeight * 2);
+    }
+
+    private Graphics createLayerGraphics (BufferedImage layer) { // layers only cover the board, but are drawn on with screen coordinates
+        Graphics g = layer.getGraphics();
+        g.translate(-config.SIDE_SIZE, -config.SIDE_SIZE); // as if the board didn't scroll, drawPlaying puts the layer where the rows are
+        return g;
+    }
+
+    private BufferedImage createLayer () {
+        int width = config.COLUMNS*config.TILE_WIDTH + 1, height = frame.blocks.getRows()*config.TILE_HEIGHT + 1; // +1 for the outlines
+        if (GraphicsEnvironment.isHeadless()) return new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        GraphicsConfiguration gc = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDefaultConfiguration();
+        return gc.createCompatibleImage(width, height); // same format as the screen, so java2d can keep it accelerated
+    }
+
+    private void updateFieldLayer () {
+        if (fieldLayer == null) {
+            backgroundLayer = createLayer();
+            Graphics bg = createLayerGraphics(backgroundLayer);
+            drawBackground(bg);
+            bg.dispose();
+
+            fieldLayer = createLayer();
+            Graphics fg = fieldLayer.getGraphics();
+            fg.drawImage(backgroundLayer, 0, 0, null);
+            fg.dispose();
+            frame.blocks.markAllChanged(); // the first frame draws every tile
+        }
+
+        BlockField blocks = frame.blocks;
+        long scrolled = blocks.getScrolledRows() - layerScrolledRows;
+        if (scrolled != 0) { // the rows moved down: so does the picture of them, only the new rows have to be drawn
+            layerScrolledRows = blocks.getScrolledRows();
+            if (scrolled > 0 && scrolled < blocks.getRows()) {
+                int shift = (int) scrolled * config.TILE_HEIGHT;
+                Graphics fg = fieldLayer.getGraphics();
+                fg.copyArea(0, 0, fieldLayer.getWidth(), fieldLayer.getHeight() - shift, 0, shift);
+                fg.dispose();
+            }
+            else blocks.markAllChanged(); // went back in time, or a loaded game
+        }
+        int i = blocks.nextChanged(0);
+        if (i < 0) return;
+        int cells = blocks.getColumns() * blocks.getRows();
+        if (redrawCells.length != cells) {
+            redrawCells = new int[cells];
+            redrawQueued = new long[(cells + 63) >>> 6];
+        }
+        Graphics g = createLayerGraphics(fieldLayer);
+        int count = 0;
+        for (; i >= 0; i = blocks.nextChanged(i + 1)) count = restoreTile(g, blocks, blocks.column(i), blocks.row(i), count);
+        blocks.drawBlocks(g, config, redrawCells, count);
+        g.dispose();
+        Arrays.fill(redrawQueued, 0);
+        blocks.clearChanged();
+    }
+
+    public void addChangedTiles (DirtyArea dirty, RenderFrame frame) { // tiles that the field layer will redraw when drawing the frame
+        BlockField blocks = frame.blocks;
+        for (int i = blocks.nextChanged(0); i >= 0; i = blocks.nextChanged(i + 1)) {
+            int x = blocks.column(i), y = blocks.row(i);
+            dirty.add(x*config.TILE_WIDTH + config.SIDE_SIZE, y*config.TILE_HEIGHT + blocks.getOriginY(), config.TILE_WIDTH + 1, config.TILE_HEIGHT + 1);
+        }
+    }
+
+    private int restoreTile (Graphics g, BlockField blocks, int col, int row, int count) { // returns the new number of queued blocks
+        // the outline of a block is one pixel bigger than the tile, so it overlaps the neighbours' edges.
+        // restore the background under the tile and queue the blocks of the 3x3 area around it to be drawn again
+        int x = col*config.TILE_WIDTH, y = row*config.TILE_HEIGHT; // in the layer
+        int width = config.TILE_WIDTH + 1, height = config.TILE_HEIGHT + 1;
+        g.drawImage(backgroundLayer, x + config.SIDE_SIZE, y + config.SIDE_SIZE, x + config.SIDE_SIZE + width, y + config.SIDE_SIZE + height,
+            x, y, x + width, y + height, null);
+        for (int i = Math.max(col - 1, 0); i <= Math.min(col + 1, config.COLUMNS - 1); i++) {
+            for (int j = Math.max(row - 1, 0); j <= Math.min(row + 1, blocks.getRows() - 1); j++) {
+                int cell = blocks.index(i, j);
+                if (!blocks.isAlive(i, j) || (redrawQueued[cell >>> 6] & (1L << cell)) != 0) continue;
+                redrawQueued[cell >>> 6] |= 1L << cell;
+                redrawCells[count++] = cell;
+            }
+        }
+        return count;
     }
 
     private void drawBackground (Graphics g) {
+        // an endless board has no top and bottom edge in its layer: every row looks the same, so the layer can be moved by rows
+        boolean endless = frame.blocks.isEndless();
+        int rows = frame.blocks.getRows();
         g.setColor(Color.darkGray);
-        for (int row = 0; row <= config.ROWS; row++) {
+        for (int row = 0; row <= rows; row++) {
             for (int col = 0; col <= config.COLUMNS; col++) {
                 int x = config.SIDE_SIZE + col * config.TILE_WIDTH;
                 int y = config.SIDE_SIZE + row * config.TILE_HEIGHT;
                 int mostLeft = x-4, mostTop = y-4, mostRight = x+4, mostBottom = y+4;
                 if (col == 0) mostLeft = x;
                 if (col == config.COLUMNS) mostRight = x;
-                if (row == 0) mostTop = y;
-                if (row == config.ROWS) mostBottom = y;
+                if (row == 0 && !endless) mostTop = y;
+                if (row == rows && !endless) mostBottom = y;
 
                 g.drawLine(mostLeft, y, mostRight, y);
                 g.drawLine(x, mostTop, x, mostBottom);
             }
         }
-        g.drawRect(config.SIDE_SIZE, config.SIDE_SIZE, config.COLUMNS*config.TILE_WIDTH, config.ROWS*config.TILE_HEIGHT);
+        if (!endless) g.drawRect(config.SIDE_SIZE, config.SIDE_SIZE, config.COLUMNS*config.TILE_WIDTH, config.ROWS*config.TILE_HEIGHT);
+    }
+
+    public static int cooldownSeconds (RenderFrame frame) { // -1 if there are no temporary balls
+        Ball ball = frame.ball;
+        if (!ball.areThereTemporaryBalls()) return -1;
+        int left = frame.clock.millisLeft(ball.temporaryCooldownUntil);
+        return left > 0 ? left / 1000 + 1 : 0;
     }
 
     private void drawScore (Graphics g) {
-        int scoreNum = 0;
-        scoreNum = ball.getScore();
-        String score = "Score: " + scoreNum;
-        String lives = "Lives: " + player.getLives();
-        //String highscore = "Highscore: 0"; //read file
+        int scoreNum = frame.ball.getScore();
+        if (scoreNum != scoreShown) {
+            scoreShown = scoreNum;
+            scoreText = "Score: " + scoreNum;
+            scoreX = config.WIDTH_SCREEN*2/4 - g.getFontMetrics().stringWidth(scoreText) / 2;
+        }
+        int livesNum = frame.player.getLives();
+        if (livesNum != livesShown) {
+            livesShown = livesNum;
+            livesText = "Lives: " + livesNum;
+            livesX = config.WIDTH_SCREEN/4 - g.getFontMetrics().stringWidth(livesText) / 2;
+        }
 
-        String cooldownString;
-        if (ball.areThereTemporaryBalls()) {
-            int cooldown = (int) ((ball.temporaryCooldownEndTime - System.currentTimeMillis()) / 1000 + 1);
-            if (cooldown < 0) cooldown = 0;
-            cooldownString = "Cooldown: " + cooldown;
+        int cooldown = cooldownSeconds(frame);
+        if (cooldown != cooldownShown) {
+            cooldownShown = cooldown;
+            cooldownText = cooldown >= 0 ? "Cooldown: " + cooldown : "Cooldown: --";
+            cooldownX = config.WIDTH_SCREEN*3/4 - g.getFontMetrics().stringWidth(cooldownText) / 2;
         }
-        else cooldownString = "Cooldown: --";
 
         g.setColor(Color.white);
-        g.drawString(lives, config.WIDTH_SCREEN/4 - g.getFontMetrics().stringWidth(lives) / 2, config.SIDE_SIZE/2);
-        g.drawString(score, config.WIDTH_SCREEN*2/4 - g.getFontMetrics().stringWidth(score) / 2, config.SIDE_SIZE/2);
-        g.drawString(cooldownString, config.WIDTH_SCREEN*3/4 - g.getFontMetrics().stringWidth(cooldownString) / 2, config.SIDE_SIZE/2);
+        g.drawString(livesText, livesX, config.SIDE_SIZE/2);
+        g.drawString(scoreText, scoreX, config.SIDE_SIZE/2);
+        g.drawString(cooldownText, cooldownX, config.SIDE_SIZE/2);
     }
+}
 
-    @Override
-    public void keyTyped(KeyEvent e){}
 
-    @Override
-    public void keyPressed(KeyEvent e) {
-        switch (state) {
-            case GameState.PLAYING:
-                if (e.getKeyCode() == KeyEvent.VK_P) pause();
-                else {
-                    player.keyPressed(e);
-                    ball.keyPressed(e);
-                }
-                break;
-            case GameState.UPGRADE:
-                upgrade.chooseType(e);
-                break;
-            case GameState.PAUSE:
-                if (e.getKeyCode() == KeyEvent.VK_P) resume();
-                else if (e.getKeyCode() == KeyEvent.VK_E) triggerGameOver();
-                break;
-        }
+// the text of the numbers the floating points show. the common ones are built once, the others (big combos) are kept
+// while they're used: a number stays on screen for a second, so it's looked up about 50 times for one conversion
+class PointTexts {
+    private static final String[] COMMON = new String[1000];
+    static {
+        for (int i = 0; i < COMMON.length; i++) COMMON[i] = valueOf(i);
     }
 
-    @Override
-    public void keyReleased(KeyEvent e) {
-        player.keyReleased(e);
-    }
+    private final int[] numbers; // the least recently used one is replaced by a new number
+    private final String[] texts;
+    private final long[] lastUsed;
+    private long uses;
 
-    @Override
-    public void actionPerformed(ActionEvent e) {
-        if (state == GameState.PLAYING) {
+    public PointTexts (int capacity) {
+        this.numbers = new int[capacity];
+        this.texts = new String[capacity];
+        this.lastUsed = new long[capacity];
+    }
 
-            player.tick(config);
-            if (!powerups.isEmpty()) Powerup.tick(config, powerups, activePowerup, player);
-            if (activePowerup != null) {
-                
+    public String get (int points) {
+        if (points >= 0 && points < COMMON.length) return COMMON[points];
+        uses++;
+        int oldest = 0;
+        for (int i = 0; i < texts.length; i++) {
+            if (texts[i] != null && numbers[i] == points) {
+                lastUsed[i] = uses;
+                return texts[i];
             }
-            int oldBallScore = ball.getScore();
+            if (lastUsed[i] < lastUsed[oldest]) oldest = i;
+        }
+        numbers[oldest] = points;
+        texts[oldest] = valueOf(points);
+        lastUsed[oldest] = uses;
+        return texts[oldest];
+    }
+}
 
-            for (Block[] array : blocksMatrix) for (Block block : array) if (block != null) block.tick(blocksMatrix);
-            ball.tick(config, blocksMatrix, player, powerups);
 
-            if (ball.getClass() == Ball.class) {
-                if (ball.getSpeed() <= 0 && ball.active) reset(config);
-            }
+// the window side of the game (passive rendering): the swing timer takes the newest frame of the game loop and asks
+// for a repaint of what changed
+class Board extends JPanel implements ActionListener, KeyListener {
+    private final Timer timer;
+    private final GameConfig config;
+    private final GameLoop loop;
+    private final Renderer renderer;
+    private RenderFrame frame; // the frame the next paint draws, and where
+    private double alpha;
+    private boolean exiting = false;
+    private final DirtyArea lastFrameArea = new DirtyArea(), frameArea = new DirtyArea(); // where moving things were drawn
+    private Simulation.GameState lastState = null;
+    private boolean lastChoosing;
+    private String lastSnapshotStatus; // the pause menu shows it
+    private HighScores.Entry[] lastHighScores; // the game over screen shows them
+    private long lastTick; // only changes behind a menu when the pause menu goes back in time or loads a game
+    private int lastOriginY; // endless board: the blocks moved
+    private int lastScore, lastLives, lastCooldown;
+    private FontMetrics metrics; // for the size of the floating points
+
+    public Board (Simulation simulation, InputReplay replay) {
+        this.config = simulation.getConfig();
+        this.loop = new GameLoop(simulation);
+        loop.setReplay(replay);
+        this.renderer = new Renderer(config);
+        this.frame = loop.takeFrame();
 
-            int newBallScore = ball.getScore();
-            // upgrade conditions
-            if (oldBallScore != newBallScore && oldBallScore % (1000 * (upgrade.numberOfUpgrades * 2 + 1)) > newBallScore % (1000 * (upgrade.numberOfUpgrades * 2 + 1))) upgrade.getUpgrade();
-            if (player.getLives() == 0) triggerGameOver();
-        }
-        repaint ();
-    }
+        setPreferredSize(new Dimension(config.WIDTH_SCREEN, config.HEIGHT_SCREEN));
+        setBackground(Color.black);
 
-    private void triggerGameOver() {
-        state = GameState.GAME_OVER;
-        repaint();
+        this.timer = new Timer(config.RENDER_DELAY, this); // needs to have a listener
+    }
 
-        Timer timer = new Timer(2000, _ -> System.exit(0));
-        timer.setRepeats(false); // Ensure the timer only runs once
+    public void start () {
+        loop.startThread();
         timer.start();
     }
 
-    private void drawGameOver(Graphics g) {
-        g.setColor(Color.BLACK);
-        g.fillRect(0,0, getWidth(), getHeight());
-
-        String text = "Game over!";
-        g.setColor(Color.WHITE);
-        g.drawString(text, getWidth() / 2 - g.getFontMetrics().stringWidth(text) / 2, getHeight() / 2);
+    @Override
+    protected void paintComponent (Graphics g) {
+        PhaseTimings timings = frame.timings;
+        long start = timings.start();
+        renderer.draw(g, frame, alpha); // the renderer paints the whole background, no need for super
+        loop.framePainted(frame, timings.lap(PhaseTimings.Phase.PAINT, start)); // swing shows the back buffer right after
     }
 
-    private void pause (){
-        state = GameState.PAUSE;
-        timer.stop();
-        repaint();
-    }
+    @Override
+    public void keyTyped(KeyEvent e){}
 
-    private void resume () {
-        state = GameState.PLAYING;
-        timer.start();
-        repaint();
+    @Override
+    public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_F3) { // the timings overlay isn't part of the game, so it isn't an input
+            renderer.toggleTimings();
+            repaint();
+        }
+        else loop.addInput(new GameInput(e.getKeyCode(), true, System.nanoTime()));
     }
 
-    private void reset (GameConfig config) {
-        ball.initialState (config);
-        player.initialState(config);
-        player.loseLive();
+    @Override
+    public void keyReleased(KeyEvent e) {
+        if (e.getKeyCode() != KeyEvent.VK_F3) loop.addInput(new GameInput(e.getKeyCode(), false, System.nanoTime()));
     }
 
-    public class Upgrade {
-        public upgradeType type, choice1, choice2;
-        private boolean choosing = false;
-        private int numberOfUpgrades = 0;
-        private long lastKeyPressTime = 0;
+    @Override
+    public void actionPerformed(ActionEvent e) { // runs every frame
+        frame = loop.takeFrame();
+        alpha = loop.alpha(frame, System.nanoTime());
 
-        public enum upgradeType {
-            widenPlayer,
-            enlargeBall,
-            quickerPlayer,
-            explosiveBall,
-            moreDamage
+        if (frame.state == Simulation.GameState.GAME_OVER && !exiting) {
+            exiting = true;
+            Game.exitLater();
+        }
+        repaintDirtyArea();
+    }
+
+    private void repaintDirtyArea () { // only repaint what changed since the last frame instead of the whole panel
+        frameArea.clear(); // where the moving things are drawn this frame
+        frame.player.addBounds(frameArea, alpha);
+        if (metrics == null) metrics = getFontMetrics(getFont());
+        frame.ball.addBounds(frameArea, metrics, alpha);
+        frame.storm.addBounds(frameArea, alpha);
+        ArrayList <Powerup> powerups = frame.powerups;
+        for (int i = 0; i < powerups.size(); i++) powerups.get(i).addBounds(frameArea, alpha);
+
+        Simulation.GameState state = frame.state;
+        boolean choosing = frame.choosing;
+        String snapshotStatus = frame.snapshots == null ? null : frame.snapshots.getStatus();
+        HighScores.Entry[] highScores = frame.highScores == null ? null : frame.highScores.getTop();
+        long tick = frame.tick;
+        if (state != lastState || choosing != lastChoosing || snapshotStatus != lastSnapshotStatus || highScores != lastHighScores
+                || (state != Simulation.GameState.PLAYING && tick != lastTick)) { // menus opened, closed or changed
+            lastState = state;
+            lastChoosing = choosing;
+            lastSnapshotStatus = snapshotStatus;
+            lastHighScores = highScores;
+            lastTick = tick;
+            lastFrameArea.clear();
+            lastFrameArea.add(frameArea); // the full repaint draws them too, the next frame has to erase them
+            repaint();
+            return;
+        }
+        if (state != Simulation.GameState.PLAYING) return; // nothing moves behind the menus
+
+        DirtyArea dirty = lastFrameArea; // erase the old positions, draw the new ones
+        dirty.add(frameArea);
+        renderer.addChangedTiles(dirty, frame);
+        renderer.addTimingsArea(dirty);
+        int originY = frame.blocks.getOriginY();
+        if (originY != lastOriginY) { // the whole board scrolled
+            lastOriginY = originY;
+            dirty.add(config.SIDE_SIZE, config.SIDE_SIZE, config.COLUMNS*config.TILE_WIDTH + 1, config.ROWS*config.TILE_HEIGHT + 1);
         }
 
-        public Upgrade () {
-            randomChoices();
+        int score = frame.ball.getScore(), lives = frame.player.getLives(), cooldown = Renderer.cooldownSeconds(frame);
+        if (score != lastScore || lives != lastLives || cooldown != lastCooldown) {
+            lastScore = score;
+            lastLives = lives;
+            lastCooldown = cooldown;
+            dirty.add(0, 0, config.WIDTH_SCREEN, config.SIDE_SIZE); // the hud
         }
 
+        if (!dirty.isEmpty()) repaint(dirty.getX(), dirty.getY(), dirty.getWidth(), dirty.getHeight());
+        lastFrameArea.clear();
+        lastFrameArea.add(frameArea);
+    }
+}
+
 
-        public void getUpgrade () {
-            state = GameState.UPGRADE;
-            timer.stop();
-            repaint();
-        }
+// the window side of the game (active rendering): its own thread draws the newest frame of the game loop and flips
+// the pages of a BufferStrategy itself, so frames are presented when they are ready instead of when swing gets to them
+class GameCanvas extends Canvas implements KeyListener, Runnable {
+    private static final long serialVersionUID = 1L;
+    private final GameConfig config;
+    private final GameLoop loop;
+    private final Renderer renderer;
+    private volatile boolean running = false;
+
+    public GameCanvas (Simulation simulation, InputReplay replay) {
+        this.config = simulation.getConfig();
+        this.loop = new GameLoop(simulation);
+        loop.setReplay(replay);
+        this.renderer = new Renderer(config);
+
+        setPreferredSize(new Dimension(config.WIDTH_SCREEN, config.HEIGHT_SCREEN));
+        setBackground(Color.black);
+        setIgnoreRepaint(true); // we draw when we want, not when the os asks
+        setFocusable(false); // keys go to the window, like with the board
+    }
+
+    public void start () { // the canvas has to be visible before it can have a BufferStrategy
+        createBufferStrategy(2);
+        running = true;
+        loop.startThread();
+        Thread thread = new Thread(this, "render loop");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public void run () {
+        BufferStrategy strategy = getBufferStrategy();
+        long frameNanos = config.RENDER_DELAY * 1_000_000L;
+        boolean exiting = false;
+
+        while (running) {
+            long frameStart = System.nanoTime();
+            RenderFrame frame = loop.takeFrame();
+            double alpha = loop.alpha(frame, frameStart);
+            if (frame.state == Simulation.GameState.GAME_OVER && !exiting) {
+                exiting = true;
+                Game.exitLater();
+            }
 
-        private void randomChoices () {
-            Random ran = new Random();
-            int choice1 = ran.nextInt(upgradeType.values().length);
-            int choice2;
-            this.choice1 = upgradeType.values()[choice1];
-            do {
-                choice2 = ran.nextInt(upgradeType.values().length); // pick 2 different choices at random
-            } while (choice1 == choice2);
-            this.choice2 = upgradeType.values()[choice2];
+            PhaseTimings timings = frame.timings;
+            long paintStart = timings.start();
+            do { // the buffers can be lost (e.g. the screen mode changed), then the frame is drawn again
+                do {
+                    Graphics g = strategy.getDrawGraphics();
+                    renderer.draw(g, frame, alpha);
+                    g.dispose();
+                } while (strategy.contentsRestored());
+                strategy.show();
+            } while (strategy.contentsLost());
+            timings.lap(PhaseTimings.Phase.PAINT, paintStart);
+            Toolkit.getDefaultToolkit().sync(); // flush the frame to the screen now (needed on linux)
+            loop.framePainted(frame, System.nanoTime());
+
+            long sleep = frameNanos - (System.nanoTime() - frameStart);
+            if (sleep > 0) LockSupport.parkNanos(sleep);
         }
+    }
 
-        public void draw(Graphics g) { // drawing the menu
-            int width = getWidth(), height = getHeight();
-            int pauseWidth = width/2, pauseHeight = height/2;
-            int pauseX = width/4, pauseY = height/4;
-            drawTransparentSquare (g, pauseX,pauseY, pauseWidth, pauseHeight);
+    @Override
+    public void keyTyped(KeyEvent e){}
 
-            int squareWidth = pauseWidth/3, squareHeight = pauseHeight/5, squareY = pauseHeight/2 + pauseY;
-            int square1X = pauseX + 10, square2X = pauseWidth + pauseX - squareWidth - 10;
-            g.setColor(Color.BLACK);
-            g.fillRect(square1X, squareY, squareWidth, squareHeight);
-            g.fillRect(square2X, squareY, squareWidth, squareHeight);
+    @Override
+    public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_F3) renderer.toggleTimings(); // drawn from the next frame on
+        else loop.addInput(new GameInput(e.getKeyCode(), true, System.nanoTime()));
+    }
 
-            g.setColor(Color.WHITE);
-            if (choosing) g.drawRect(square2X, squareY, squareWidth, squareHeight);
-            else g.drawRect(square1X, squareY, squareWidth, squareHeight);
+    @Override
+    public void keyReleased(KeyEvent e) {
+        if (e.getKeyCode() != KeyEvent.VK_F3) loop.addInput(new GameInput(e.getKeyCode(), false, System.nanoTime()));
+    }
+}
 
-            String choice1 = upgrade.choice1.toString();
-            String choice2 = upgrade.choice2.toString();
-            String text = "Choose one upgrade";
-            g.drawString(text, pauseWidth / 2 - g.getFontMetrics().stringWidth(text) / 2 + pauseX, pauseHeight / 5 + pauseY);
-            g.drawString(choice1, square1X + squareWidth/2 - g.getFontMetrics().stringWidth(choice1) / 2, squareY + squareHeight/2);
-            g.drawString(choice2, square2X + squareWidth/2 - g.getFontMetrics().stringWidth(choice1) / 2, squareY + squareHeight/2);
-        }
 
-        public void chooseType (KeyEvent e) { // logic to choose the menu (may re-use)
-            int DELAY = 200;
-            long timePressed = System.currentTimeMillis();
-            if (timePressed - lastKeyPressTime <= DELAY) return; // delay between presses
-            lastKeyPressTime = timePressed;
+// bounding box of everything that needs repainting, kept as ints so a frame doesn't allocate rectangles
+class DirtyArea {
+    private int minX, minY, maxX, maxY;
+    private boolean empty = true;
 
-            int key = e.getKeyCode();
-            if (key == KeyEvent.VK_LEFT || key == KeyEvent.VK_RIGHT) {
-                choosing = !choosing;
-            }
-            else if (key == KeyEvent.VK_ENTER) {
-                type = choosing ? choice2 : choice1;
-                choosing = false;
-                numberOfUpgrades++;
-                randomChoices();
-                gottenUpgrade();
-            }
-            repaint();
-        }
+    public void clear () { empty = true; }
+    public boolean isEmpty () { return empty; }
 
-        private void gottenUpgrade () {
-            switch (upgrade.type) {
-                case enlargeBall -> ball.enlargeBall();
-                case widenPlayer -> player.widenPlayer();
-                case quickerPlayer -> player.fastenPlayer();
-                case moreDamage -> ball.moreDamage();
-                case explosiveBall -> explosiveBallUpgrade();
-            }
-            state = GameState.PLAYING;
-            timer.start();
-            repaint();
+    public void add (int x, int y, int width, int height) {
+        if (empty) {
+            minX = x;
+            minY = y;
+            maxX = x + width;
+            maxY = y + height;
+            empty = false;
+            return;
         }
+        minX = Math.min(minX, x);
+        minY = Math.min(minY, y);
+        maxX = Math.max(maxX, x + width);
+        maxY = Math.max(maxY, y + height);
+    }
 
-        private void explosiveBallUpgrade () {
-            TemporaryBall newBall = new TemporaryBall(config);
-            ball.addTempBall (newBall);
-        }
+    public void add (DirtyArea other) {
+        if (!other.empty) add(other.minX, other.minY, other.maxX - other.minX, other.maxY - other.minY);
     }
+
+    public int getX () { return minX; }
+    public int getY () { return minY; }
+    public int getWidth () { return maxX - minX; }
+    public int getHeight () { return maxY - minY; }
 }
 
 //--------------------------------------------------------------------------------------------------------
 
-class Block {
-    private int lives, col, row, speed; // col and row start on 0
-    private Color color;
-    private BlockType type;
+// all the blocks of the board, stored as one array per property instead of one object per block.
+// cells are numbered column by column (index = col * rows + row), the same order the board is drawn in.
+// an endless board only keeps the rows in view, plus one above them that the scrolling uncovers: when the bottom row
+// is empty the rows move down (by offsetY pixels, then a whole row), the bottom one is dropped and a new one comes
+// in at the top. the rows are generated CHUNK_ROWS at a time when the first of them is needed, so however far the
+// game goes, there are never more than the rows in view and one chunk in memory
+class BlockField {
+    private final int columns, rows;
+    private final byte[] lives, type, hits; // hits: how many times the block was hit, each hit makes it brighter
+    private final long[] alive; // one bit per cell, set if there's a block there
+    private final long[] changed; // one bit per cell, set when the cell changed and still has to be redrawn
+    private int aliveCount = 0;
+    private static final BlockType[] TYPES = BlockType.values(); // values() copies the array on every call
+    private static final Color[] PALETTE; // the colors of every type and hit, blocks are drawn one color at a time
+    private static final int[] PALETTE_START = new int[TYPES.length]; // where the colors of a type begin in it
+
+    static {
+        int colors = 0;
+        for (BlockType blockType : TYPES) colors += blockType.colors.length;
+        PALETTE = new Color[colors];
+        int next = 0;
+        for (BlockType blockType : TYPES) {
+            PALETTE_START[blockType.ordinal()] = next;
+            for (Color color : blockType.colors) PALETTE[next++] = color;
+        }
+    }
+
+    private final int top, tileHeight; // screen y of the top of row 0 when nothing scrolled
+    private int offsetY = 0; // endless: how far the rows moved down since the last whole row
+    private long scrolledRows = 0; // endless: rows dropped at the bottom so far, the board row number of the bottom row
+    private final RandomStream generator; // endless: the level stream, null for a normal board
+    private final byte[] chunk; // endless: the types of the rows of one chunk, -1 where there's no block
+    private long chunkNumber = -1; // which chunk is in it
 
     public enum BlockType {
-        AVERAGE,
-        STICKY,
-        RESISTANT
+        AVERAGE(1, 1, new Color(255,223,0)),
+        STICKY(1, -2, new Color(50,205,50)),
+        RESISTANT(2, 0, new Color(200,42,42));
+
+        final int lives, speed;
+        final Color[] colors; // one color per hit the block can take, computed once
+
+        BlockType (int lives, int speed, Color color) {
+            this.lives = lives;
+            this.speed = speed;
+            this.colors = new Color[lives];
+            colors[0] = color;
+            for (int i = 1; i < lives; i++) colors[i] = colors[i - 1].brighter();
+        }
+    }
+
+    public BlockField (int columns, int rows, int top, int tileHeight, RandomStream generator, int chunkRows) {
+        this.columns = columns;
+        this.rows = rows;
+        this.top = top;
+        this.tileHeight = tileHeight;
+        this.generator = generator;
+        this.chunk = generator == null ? null : new byte[chunkRows * columns];
+        int cells = columns * rows;
+        this.lives = new byte[cells];
+        this.type = new byte[cells];
+        this.hits = new byte[cells];
+        this.alive = new long[(cells + 63) / 64];
+        this.changed = new long[(cells + 63) / 64];
     }
 
-    public static Block[][] createAllBlocks (GameConfig config) {
+    public BlockField (BlockField shape) { // an empty field the size of another one, for a RenderFrame to copy it into
+        this(shape.columns, shape.rows, shape.top, shape.tileHeight, shape.generator, 0); // never generates, only isEndless() reads it
+    }
+
+    // for a RenderFrame: the blocks and where they are. the changed cells move to the copy, the renderer redraws them from there
+    public void copyFrom (BlockField from) {
+        System.arraycopy(from.lives, 0, lives, 0, lives.length);
+        System.arraycopy(from.type, 0, type, 0, type.length);
+        System.arraycopy(from.hits, 0, hits, 0, hits.length);
+        System.arraycopy(from.alive, 0, alive, 0, alive.length);
+        System.arraycopy(from.changed, 0, changed, 0, changed.length);
+        from.clearChanged();
+        aliveCount = from.aliveCount;
+        offsetY = from.offsetY;
+        scrolledRows = from.scrolledRows;
+    }
+
+    public static BlockField createAllBlocks (GameConfig config, RandomStream rand) {
         // fill the entire board with blocks
-        Block[][] array = new Block[config.COLUMNS][config.ROWS];
+        BlockField field = new BlockField(config.COLUMNS, config.ROWS, config.SIDE_SIZE, config.TILE_HEIGHT, null, 0);
         for (int x = 0; x < config.COLUMNS; x++) {
             for (int y = 0; y < config.ROWS; y++) {
                 BlockType type;
@@ -377,68 +2552,220 @@ class Block {
                 else if (y < config.COLUMNS/2) type = BlockType.STICKY;
                 else type = BlockType.AVERAGE;
 
-                Random rand = new Random();
-                int chance = rand.nextInt(4), choice = rand.nextInt(BlockType.values().length); // 1/5 chance of any block being a random type
+                int chance = rand.nextInt(4), choice = rand.nextInt(TYPES.length); // 1/5 chance of any block being a random type
 
-                if (chance == 0) type = BlockType.values()[choice];
+                if (chance == 0) type = TYPES[choice];
 
-                Point p = new Point(x,y);
-                Block b = createBlock (type,p);
-                array[x][y] = b;
+                field.set(x, y, type);
             }
         }
-        return array;
+        return field;
     }
 
+    public static BlockField createEndless (GameConfig config, RandomStream rand) {
+        // the rows in view plus the one above them, starting from the bottom of the board
+        BlockField field = new BlockField(config.COLUMNS, config.ROWS + 1, config.SIDE_SIZE - config.TILE_HEIGHT, config.TILE_HEIGHT, rand, config.CHUNK_ROWS);
+        for (int row = field.rows - 1; row >= 0; row--) field.fillRow(row, field.rows - 1 - row);
+        return field;
+    }
 
-    public static Block createBlock (BlockType type, Point p) {
-        Block block = new Block();
-        switch (type) {
-            case STICKY:
-                block.lives = 1;
-                block.speed = -2;
-                block.color = new Color(50,205,50);
-                break;
-            case AVERAGE:
-                block.lives = 1;
-                block.speed = 1;
-                block.color = new Color(255,223,0);
-                break;
-            case RESISTANT:
-                block.lives = 2;
-                block.speed = 0;
-                block.color = new Color(200,42,42);
-                break;
-        }
-        block.col = p.x;
-        block.row = p.y;
-        block.type = type;
-        return block;
+    public int getColumns () { return columns; }
+    public int getRows () { return rows; }
+    public int getOriginY () { return top + offsetY; } // screen y of the top of row 0
+    public int getFirstVisibleRow () { return generator != null && offsetY == 0 ? 1 : 0; } // endless: row 0 is above the view until the rows move down
+    public long getScrolledRows () { return scrolledRows; }
+    public boolean isEndless () { return generator != null; }
+    public int index (int col, int row) { return col * rows + row; }
+    public int column (int index) { return index / rows; }
+    public int row (int index) { return index % rows; }
+
+    public boolean isAlive (int col, int row) {
+        int i = index(col, row);
+        return (alive[i >>> 6] & (1L << i)) != 0;
+    }
+
+    public boolean isCleared () { return aliveCount == 0 && generator == null; } // an endless board always has more
+    public int getAliveCount () { return aliveCount; }
+
+    public void set (int col, int row, BlockType blockType) {
+        int i = index(col, row);
+        if ((alive[i >>> 6] & (1L << i)) == 0) aliveCount++;
+        alive[i >>> 6] |= 1L << i;
+        changed[i >>> 6] |= 1L << i;
+        lives[i] = (byte) blockType.lives;
+        type[i] = (byte) blockType.ordinal();
+        hits[i] = 0;
+    }
+
+    public void remove (int col, int row) {
+        int i = index(col, row);
+        if ((alive[i >>> 6] & (1L << i)) == 0) return;
+        alive[i >>> 6] &= ~(1L << i);
+        changed[i >>> 6] |= 1L << i;
+        aliveCount--;
+    }
+
+    public BlockType getType (int col, int row) { return TYPES[type[index(col, row)]]; }
+
+    public int getSpeed (int col, int row) {
+        return getType(col, row).speed;
+    }
+
+    private int colorIndex (int i) { // in PALETTE
+        return PALETTE_START[type[i]] + Math.min(hits[i], TYPES[type[i]].colors.length - 1);
     }
 
-    public int loseLife (Block block, int damage) {
-        block.lives -= damage;
-        Color oldColor = block.color;
-        block.color = oldColor.brighter();
-        if (block.lives <= 0) { // destroyed the block
-            return ((block.type.ordinal() + 1) * 30); // points equal to the order of the enum, average = 30, sticky = 60, resistant = 90
+    public int hit (int col, int row, int damage) { // the block loses lives, returns the points if it was destroyed
+        int i = index(col, row);
+        lives[i] -= (byte) Math.min(damage, lives[i]);
+        if (hits[i] < Byte.MAX_VALUE) hits[i]++;
+        changed[i >>> 6] |= 1L << i;
+        if (lives[i] <= 0) { // destroyed the block
+            remove(col, row);
+            return ((type[i] + 1) * 30); // points equal to the order of the enum, average = 30, sticky = 60, resistant = 90
         }
         else return 0;
     }
 
-    public int getSpeed () {
-        return this.speed;
+    public int scroll (int speed) { // endless board: moves the rows down while the bottom one is empty, returns by how much
+        if (generator == null || (offsetY == 0 && !isRowEmpty(rows - 1))) return 0;
+        int moved = Math.min(speed, tileHeight - offsetY); // stops on every whole row, to check the new bottom one
+        offsetY += moved;
+        if (offsetY == tileHeight) {
+            offsetY = 0;
+            shiftRows();
+        }
+        return moved;
     }
 
-    public void draw (Graphics g, GameConfig config) {
-        g.setColor (color);
-        g.fillRect (col*config.TILE_WIDTH + config.SIDE_SIZE, row*config.TILE_HEIGHT + config.SIDE_SIZE, config.TILE_WIDTH, config.TILE_HEIGHT);
-        g.setColor(Color.white);
-        g.drawRect(col*config.TILE_WIDTH + config.SIDE_SIZE, row*config.TILE_HEIGHT + config.SIDE_SIZE, config.TILE_WIDTH, config.TILE_HEIGHT);
+    public int getLowestAliveRow (int col) { // -1 when the column is empty
+        for (int row = rows - 1; row >= 0; row--) if (isAlive(col, row)) return row;
+        return -1;
+    }
+
+    private boolean isRowEmpty (int row) {
+        for (int col = 0; col < columns; col++) if (isAlive(col, row)) return false;
+        return true;
+    }
+
+    private void shiftRows () { // every row moves down one, the bottom one (empty) is dropped and a new one comes in at the top
+        for (int col = 0; col < columns; col++) {
+            int first = col * rows;
+            System.arraycopy(lives, first, lives, first + 1, rows - 1);
+            System.arraycopy(type, first, type, first + 1, rows - 1);
+            System.arraycopy(hits, first, hits, first + 1, rows - 1);
+        }
+        shiftBitsUp(alive); // cells keep their state, including the ones changed this tick and not redrawn yet
+        shiftBitsUp(changed);
+        scrolledRows++;
+        fillRow(0, scrolledRows + rows - 1);
+    }
+
+    private void shiftBitsUp (long[] bits) { // index i becomes i + 1
+        for (int w = bits.length - 1; w > 0; w--) bits[w] = bits[w] << 1 | bits[w - 1] >>> 63;
+        bits[0] <<= 1;
+        int end = columns * rows; // the bottom row of the last column moved past the last cell
+        if (end >>> 6 < bits.length) bits[end >>> 6] &= ~(1L << end);
+    }
+
+    private void fillRow (int row, long boardRow) { // the cells of a new row, from the chunk it's in
+        int chunkRows = chunk.length / columns;
+        long number = boardRow / chunkRows;
+        if (number != chunkNumber) generateChunk(number);
+        int first = (int) (boardRow % chunkRows) * columns;
+        for (int col = 0; col < columns; col++) {
+            int i = index(col, row);
+            alive[i >>> 6] &= ~(1L << i); // what was there moved down already
+            changed[i >>> 6] |= 1L << i;
+            lives[i] = type[i] = hits[i] = 0;
+            if (chunk[first + col] >= 0) set(col, row, TYPES[chunk[first + col]]);
+        }
+    }
+
+    private void generateChunk (long number) { // the higher up the board, the fewer gaps and the more resistant blocks
+        int gaps = (int) Math.max(5, 25 - 2 * number), resistant = (int) Math.min(50, 10 + 5 * number), sticky = 30; // percent
+        for (int i = 0; i < chunk.length; i++) {
+            int roll = generator.nextInt(100);
+            if (roll < gaps) chunk[i] = -1;
+            else if (roll < gaps + resistant) chunk[i] = (byte) BlockType.RESISTANT.ordinal();
+            else if (roll < gaps + resistant + sticky) chunk[i] = (byte) BlockType.STICKY.ordinal();
+            else chunk[i] = (byte) BlockType.AVERAGE.ordinal();
+        }
+        chunkNumber = number;
+    }
+
+    public int nextAlive (int fromIndex) { return nextSetBit(alive, fromIndex); } // -1 if there are no more blocks
+    public int nextChanged (int fromIndex) { return nextSetBit(changed, fromIndex); }
+
+    public void clearChanged () { Arrays.fill(changed, 0); }
+
+    public void markAllChanged () {
+        int cells = columns * rows;
+        for (int i = 0; i < changed.length; i++) changed[i] = -1L;
+        if (cells % 64 != 0) changed[changed.length - 1] = (1L << (cells % 64)) - 1; // no bits past the last cell
+    }
+
+    private int nextSetBit (long[] bits, int fromIndex) {
+        int word = fromIndex >>> 6;
+        if (word >= bits.length) return -1;
+        long current = bits[word] & (-1L << fromIndex);
+        while (true) {
+            if (current != 0) return word * 64 + Long.numberOfTrailingZeros(current);
+            if (++word == bits.length) return -1;
+            current = bits[word];
+        }
     }
 
-    public void tick (Block [][] matrix) {
-        if (lives <= 0) matrix[col][row] = null;
+    public void writeState (DataOutput out) throws IOException {
+        out.write(lives);
+        out.write(type);
+        out.write(hits);
+        for (long word : alive) out.writeLong(word);
+        if (generator == null) return;
+        out.writeInt(offsetY); // the rows to come are in the chunk, the level stream is saved with the others
+        out.writeLong(scrolledRows);
+        out.writeLong(chunkNumber);
+        out.write(chunk);
+    }
+
+    public void readState (DataInput in) throws IOException {
+        in.readFully(lives);
+        in.readFully(type);
+        in.readFully(hits);
+        aliveCount = 0;
+        for (int w = 0; w < alive.length; w++) {
+            alive[w] = in.readLong();
+            aliveCount += Long.bitCount(alive[w]);
+        }
+        if (generator != null) {
+            offsetY = in.readInt();
+            scrolledRows = in.readLong();
+            chunkNumber = in.readLong();
+            in.readFully(chunk);
+        }
+        markAllChanged(); // the renderer has to redraw the whole field
+    }
+
+    public void drawBlocks (Graphics g, GameConfig config, int[] cells, int count) {
+        // one pass per color, then all the outlines: changing the color is what costs the most in java2d, not the rectangles.
+        // the fills don't overlap and the outlines are all white, so this gives the same pixels as drawing block by block
+        for (int color = 0; color < PALETTE.length; color++) {
+            boolean used = false;
+            for (int k = 0; k < count; k++) {
+                int i = cells[k];
+                if (colorIndex(i) != color) continue;
+                if (!used) {
+                    g.setColor(PALETTE[color]);
+                    used = true;
+                }
+                g.fillRect(column(i)*config.TILE_WIDTH + config.SIDE_SIZE, row(i)*config.TILE_HEIGHT + config.SIDE_SIZE, config.TILE_WIDTH, config.TILE_HEIGHT);
+            }
+        }
+        g.setColor(Color.white);
+        for (int k = 0; k < count; k++) {
+            int i = cells[k];
+            g.drawRect(column(i)*config.TILE_WIDTH + config.SIDE_SIZE, row(i)*config.TILE_HEIGHT + config.SIDE_SIZE, config.TILE_WIDTH, config.TILE_HEIGHT);
+        }
     }
 }
 
@@ -446,7 +2773,9 @@ class Block {
 //--------------------------------------------------------------------
 
 class Player {
-    private int lives = 3, posX, posY, vX, speed = 15;
+    static final int START_LIVES = 3;
+    private int lives = START_LIVES, posX, posY, vX, speed = 15;
+    private int previousX; // position at the start of the tick, for drawing between ticks
     private int width = 70;
     private final int height = 10;
 
@@ -459,14 +2788,29 @@ class Player {
     public void initialState (GameConfig config) {
         posX = config.WIDTH_SCREEN / 2;
         posY = config.HEIGHT_SCREEN - config.SIDE_SIZE / 2;
+        previousX = posX;
+    }
 
+    public void savePosition () { previousX = posX; }
+
+    public void copyFrom (Player from) { // for a RenderFrame: what draw() and addBounds() read, and the lives
+        lives = from.lives;
+        posX = from.posX;
+        posY = from.posY;
+        previousX = from.previousX;
+        width = from.width;
     }
 
-    public void draw(Graphics g) {
+    public void draw(Graphics g, double alpha) {
+        int x = Utils.interpolate(previousX, posX, alpha);
         g.setColor(Color.RED);
-        g.fillRect (posX - width/2, posY - height/2, width, height);
+        g.fillRect (x - width/2, posY - height/2, width, height);
         g.setColor(Color.WHITE);
-        g.drawRect( posX - width/2, posY - height/2, width, height);
+        g.drawRect( x - width/2, posY - height/2, width, height);
+    }
+
+    public void addBounds (DirtyArea area, double alpha) {
+        area.add(Utils.interpolate(previousX, posX, alpha) - width/2, posY - height/2, width + 1, height + 1); // +1 for the outline
     }
 
     public void widenPlayer () { width += 10; }
@@ -475,9 +2819,8 @@ class Player {
     public int getWidth () {
         return width;
     }
-    public Point getPosition (){
-        return new Point(posX, posY);
-    }
+    public int getX () { return posX; }
+    public int getY () { return posY; }
     public int getHeight () { return height; }
     public int getLives() {
         return lives;
@@ -493,9 +2836,7 @@ class Player {
         if (right) vX = speed;
     }
 
-    public void keyPressed (KeyEvent e) {
-        int key = e.getKeyCode();
-
+    public void keyPressed (int key) {
         if (key == KeyEvent.VK_LEFT) {
                 left = true;
         }
@@ -505,9 +2846,7 @@ class Player {
         updateVel();
     }
 
-    public void keyReleased (KeyEvent e) {
-        int key = e.getKeyCode();
-
+    public void keyReleased (int key) {
         if (key == KeyEvent.VK_LEFT) {
             left = false;
         }
@@ -526,6 +2865,30 @@ class Player {
 
         posX += vX;
     }
+
+    public void writeState (DataOutput out) throws IOException {
+        out.writeInt(lives);
+        out.writeInt(posX);
+        out.writeInt(posY);
+        out.writeInt(previousX);
+        out.writeInt(vX);
+        out.writeInt(speed);
+        out.writeInt(width);
+        out.writeBoolean(left);
+        out.writeBoolean(right);
+    }
+
+    public void readState (DataInput in) throws IOException {
+        lives = in.readInt();
+        posX = in.readInt();
+        posY = in.readInt();
+        previousX = in.readInt();
+        vX = in.readInt();
+        speed = in.readInt();
+        width = in.readInt();
+        left = in.readBoolean();
+        right = in.readBoolean();
+    }
 }
 
 
@@ -533,34 +2896,79 @@ class Player {
 
 
 class Ball {
-    protected int posX, posY, speed = 0, damage = 1, score = 0, angle = 0, size = 15, temporaryUsedTime = 0; // angle range is 0-360
-    protected final int BASE_SPEED = 15, TEMPORARY_MAX_COOLDOWN = 5000, TEMPORARY_MAX_USED_TIME = 3000;
-    protected long temporaryCooldownEndTime = -1;
+    protected int speed = 0, damage = 1, score = 0, size = 15;
+    protected final int BASE_SPEED = 15, TEMPORARY_MAX_COOLDOWN = 5000, TEMPORARY_MAX_USED_TIME = 1875; // milliseconds
+    protected double posX, posY; // sub-pixel position, rounded only when drawing
+    protected double directionX = 1, directionY = 0; // unit vector, the velocity is direction * speed (y grows downwards)
+    protected double previousX, previousY; // position at the start of the tick, for drawing between ticks
+    // ticks of the game clock: when the temporary balls stop (-1 once they did) and when they can be used again
+    protected long temporaryUntil = 0, temporaryCooldownUntil = 0;
     protected boolean active = false;
     private final ArrayList <TemporaryBall> temporaryBallList;
-    static ArrayList<FloatingPoints> floatingPoints = new ArrayList<>();
+    private final SweptCollision sweep = new SweptCollision(); // reused every tick
+    // shared by the ball and its temporary balls, one set per game
+    protected final ArrayList<FloatingPoints> floatingPoints;
+    protected final Combo combo;
+    protected final RandomStream random; // the drops stream of the game
+    protected final GameClock clock;
+    protected final GameEvents events; // the hits are published there and scored after the balls moved
+    private long eventsRead = 0;
+
+    public Ball (GameConfig config, RandomStream random, GameClock clock, GameEvents events) {
+        this.temporaryBallList = new ArrayList<TemporaryBall>();
+        this.floatingPoints = new ArrayList<>();
+        this.combo = new Combo(clock);
+        this.random = random;
+        this.clock = clock;
+        this.events = events;
+        initialState(config);
+    }
 
-    public Ball (GameConfig config) {
+    protected Ball (GameConfig config, Ball owner) { // a temporary ball, scoring into the owner's game
         this.temporaryBallList = new ArrayList<TemporaryBall>();
+        this.floatingPoints = owner.floatingPoints;
+        this.combo = owner.combo;
+        this.random = owner.random;
+        this.clock = owner.clock;
+        this.events = owner.events;
         initialState(config);
     }
 
+    public void reserveFloatingPoints (int count) { floatingPoints.ensureCapacity(count); } // the pool is reserved by the simulation
+
     public boolean areThereTemporaryBalls () { return ! temporaryBallList.isEmpty(); }
 
     public void initialState (GameConfig config) {
         posX = config.WIDTH_SCREEN/2;
         posY = config.HEIGHT_SCREEN - config.SIDE_SIZE/2 - size - 10;
+        previousX = posX;
+        previousY = posY;
         speed = 0;
         active = false;
     }
 
-    public void draw (Graphics g) {
-        Color color = Utils.rainbowColor(100);
+    public void savePosition () {
+        previousX = posX;
+        previousY = posY;
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).savePosition();
+        for (int i = 0; i < floatingPoints.size(); i++) floatingPoints.get(i).previousY = floatingPoints.get(i).posY;
+    }
+
+    public void draw (Graphics g, PointTexts texts, double alpha) {
+        Color color = Utils.rainbowColor(combo, 100);
         g.setColor(color);
-        g.fillOval(posX - size/2, posY - size/2, size, size);
+        g.fillOval(Utils.interpolate(previousX, posX, alpha) - size/2, Utils.interpolate(previousY, posY, alpha) - size/2, size, size);
 
-        if (!floatingPoints.isEmpty()) for (FloatingPoints fp : floatingPoints) fp.draw(g);
-        if (!temporaryBallList.isEmpty()) for (TemporaryBall temp : temporaryBallList) temp.draw(g);
+        g.setColor(Utils.rainbowColor(combo, FloatingPoints.MAX_DUR / 7)); // the same for all of them
+        for (int i = 0; i < floatingPoints.size(); i++) floatingPoints.get(i).draw(g, texts, alpha);
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).draw(g, texts, alpha);
+    }
+
+    public void addBounds (DirtyArea area, FontMetrics metrics, double alpha) { // everything draw() paints
+        area.add(Utils.interpolate(previousX, posX, alpha) - size/2, Utils.interpolate(previousY, posY, alpha) - size/2, size + 1, size + 1);
+
+        for (int i = 0; i < floatingPoints.size(); i++) floatingPoints.get(i).addBounds(area, metrics, alpha);
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).addBounds(area, metrics, alpha);
     }
 
     public void addTempBall (TemporaryBall ball) {
@@ -574,90 +2982,114 @@ class Ball {
     public void enlargeBall (){ size += 5; }
     public void moreDamage () { damage ++; }
 
+    protected void setDirection (double degrees) { // 0 is right, 90 is up
+        double radians = Math.toRadians(degrees);
+        directionX = Math.cos(radians);
+        directionY = -Math.sin(radians); // minus cause y grows downwards (screen cords)
+    }
+
     private void updatePosition () {
-        double radians = Math.toRadians(angle);
-        posX += (int) (Math.cos(radians) * speed);
-        posY -= (int) (Math.sin(radians) * speed); // minus cause y grows downwards (screen cords)
+        posX += directionX * speed;
+        posY += directionY * speed;
     }
 
     private void touchingPlayer(Player p) {
-        if (Utils.touchingPlayer(this.posX, this.posY, this.size, p)) {
-            angle = 360 - angle;
+        if (directionY > 0 && Utils.touchingPlayer(this.posX, this.posY, this.size, p)) { // only when coming down, so it can't get stuck
+            directionY = -directionY;
             speed += 3; // increase speed on hit
             updatePosition();
         }
     }
 
-    private void touchingBlock (GameConfig config, Block [][] blocks, ArrayList <Powerup> powerups) {
-        int col = (posX - config.SIDE_SIZE) / config.TILE_WIDTH;
-        int row = (posY - config.SIDE_SIZE) / config.TILE_HEIGHT;
-        // see if there's a block in the current position
-        if (row >= config.ROWS || row < 0 || col < 0 || col >= config.COLUMNS) return;
-        Block block = blocks[col][row];
-        if (block == null) return;
-
-        // Block boundaries
-        int blockLeft = col * config.TILE_WIDTH + config.SIDE_SIZE;
-        int blockRight = blockLeft + config.TILE_WIDTH;
-        int blockTop = row * config.TILE_HEIGHT + config.SIDE_SIZE;
-        int blockBottom = blockTop + config.TILE_HEIGHT;
-
-        // Ball boundaries
-        int ballLeft = posX - size / 2;
-        int ballRight = posX + size / 2;
-        int ballTop = posY - size / 2;
-        int ballBottom = posY + size / 2;
-
-        // Determine collision direction
-        boolean hitFromLeft = ballRight > blockLeft && ballLeft < blockLeft && posX < blockLeft;
-        boolean hitFromRight = ballLeft < blockRight && ballRight > blockRight && posX > blockRight;
-        boolean hitFromTop = ballBottom > blockTop && ballTop < blockTop && posY < blockTop;
-        boolean hitFromBottom = ballTop < blockBottom && ballBottom > blockBottom && posY > blockBottom;
-
-        if ((hitFromLeft || hitFromRight) && (hitFromTop || hitFromBottom)) {
-            angle = 180 + angle; // Diagonal hit
-        } else if (hitFromLeft || hitFromRight) {
-            angle = 180 - angle; // Horizontal hit
-        } else {
-            angle = 360 - angle; // Vertical hit
+    void touchingBlock (GameConfig config, BlockField blocks) {
+        // moves the ball for this tick, following its path through the grid so it can't skip a block,
+        // and bounces on every block it meets on the way
+        double x = posX, y = posY;
+        double dx = directionX * speed, dy = directionY * speed;
+        int speedChange = 0;
+
+        for (int hits = 0; sweep.findFirstHit(config, blocks, x, y, dx, dy, size / 2.0); hits++) {
+            if (hits == SweptCollision.MAX_HITS_PER_TICK) { // trapped between blocks, stop where the next hit would be
+                dx *= sweep.hitTime;
+                dy *= sweep.hitTime;
+                break;
+            }
+            x += dx * sweep.hitTime; // move to the point where the ball touches the block
+            y += dy * sweep.hitTime;
+            dx *= 1 - sweep.hitTime; // what's left of the movement
+            dy *= 1 - sweep.hitTime;
+
+            if (sweep.hitSide) { // reflect the velocity on the face(s) that were hit, both for a corner
+                directionX = -directionX;
+                dx = -dx;
+            }
+            if (sweep.hitTopOrBottom) {
+                directionY = -directionY;
+                dy = -dy;
+            }
+
+            if (sweep.hitCol < 0) continue; // a border
+            speedChange += blocks.getSpeed(sweep.hitCol, sweep.hitRow); // applied from the next tick on
+            hitBlock(blocks, sweep.hitCol, sweep.hitRow, (int) x, (int) y, hitBy());
         }
 
-        angle = (angle+360) % 360; //normalize angle
+        posX = x + dx;
+        posY = y + dy;
+        speed += speedChange;
+    }
 
-        this.speed += block.getSpeed();
+    protected int hitBy () { return GameEvents.BY_BALL; }
 
-        int points = block.loseLife(block, damage); // if destroyed a block, get points
+    void hitBlock (BlockField blocks, int col, int row, int x, int y, int by) { // the storm hits through here too
+        int points = blocks.hit(col, row, damage); // if destroyed a block, get points
+        events.publish(GameEvents.Kind.BLOCK_HIT, col, row, damage, 0);
+        if (points != 0) events.publish(GameEvents.Kind.BLOCK_DESTROYED, points, x, y, by); // scored by scoreHits
+    }
 
-        if (points != 0) { // if a block was destroyed,
-            Combo.comboCounter++;
-            Combo.comboTimer = Combo.RESET_TIME; // reset counter
+    void scoreHits (GameConfig config, ArrayList <Powerup> powerups) { // the blocks destroyed since the last time, in order
+        if (events.overwritten(eventsRead)) throw new IllegalStateException("more than " + GameEvents.CAPACITY + " events between two scorings");
+        for (; eventsRead < events.published(); eventsRead++) { // a dropped powerup is published too
+            if (events.kind(eventsRead) != GameEvents.Kind.BLOCK_DESTROYED) continue;
+            int points = events.a(eventsRead), x = events.b(eventsRead), y = events.c(eventsRead);
+            combo.comboCounter++;
+            combo.until = clock.after(Combo.RESET_TIME); // reset counter
 
-            int comboBonus = Combo.comboCounter > 1 ? (Combo.comboCounter - 1) * 5 : 0; // Extra points per additional block
-            this.score += points + comboBonus;
-            floatingPoints.add(new FloatingPoints(posX, posY, points + comboBonus));
+            int comboBonus = combo.comboCounter > 1 ? (combo.comboCounter - 1) * 5 : 0; // Extra points per additional block
+            // a temporary ball's points were always dropped, and recordings replay that way
+            if (events.d(eventsRead) != GameEvents.BY_TEMPORARY_BALL) this.score = (int) Math.min(Integer.MAX_VALUE, (long) score + points + comboBonus); // an endless board can outgrow an int
+            floatingPoints.add(FloatingPoints.obtain(x, y, points + comboBonus, clock.after(FloatingPoints.MAX_DUR)));
 
-            Random ran = new Random();
-            if (ran.nextInt(9) == 0) Powerup.spawnPowerup(powerups, config, posX, posY); // 1/10 chance of dropping a powerup
+            if (random.nextInt(9) == 0) { // 1/10 chance of dropping a powerup
+                Powerup.spawnPowerup(powerups, config, x, y, random);
+                events.publish(GameEvents.Kind.POWERUP_SPAWNED, powerups.get(powerups.size() - 1).getType().ordinal(), x, y, 0);
+            }
         }
     }
 
 
-    public void tick (GameConfig config, Block[][] blocks, Player p, ArrayList <Powerup> powerups) {
-        tickBall(config, blocks, p, powerups);
+    public void tick (GameConfig config, BlockField blocks, Player p, ArrayList <Powerup> powerups) {
+        tickBalls(config, blocks, p, powerups);
+        tickEffects();
+    }
+
+    public void tickBalls (GameConfig config, BlockField blocks, Player p, ArrayList <Powerup> powerups) { // the ball and the temporary ones
+        tickBall(config, blocks, p);
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).tickBall(config, blocks, p);
+        scoreHits(config, powerups);
+    }
 
-        if (!temporaryBallList.isEmpty()) for (TemporaryBall temp : temporaryBallList) temp.tickBall(config, blocks, p, powerups);
-        if (!floatingPoints.isEmpty()) FloatingPoints.tick(Ball.floatingPoints, config);
-        Combo.tick(config);
+    public void tickEffects () { // what the hits left behind: floating points and the combo
+        if (!floatingPoints.isEmpty()) FloatingPoints.tick(floatingPoints, clock);
+        combo.tick();
     }
 
     protected void printBall () { // for debug
-        System.out.printf("X: %d, Y: %d, Speed: %d, Size: %d, Angle: %d\n", posX, posY, speed,size, angle);
+        System.out.printf("X: %.2f, Y: %.2f, Speed: %d, Size: %d, Direction: (%.3f, %.3f)\n", posX, posY, speed, size, directionX, directionY);
     }
 
-    protected void tickBall(GameConfig config, Block[][] blocks, Player p, ArrayList <Powerup> powerups) {
-        updatePosition();
-        if (posY < config.HEIGHT_SCREEN - 3*config.SIDE_SIZE) touchingBlock(config, blocks, powerups); //inside the area where blocks are
-        else touchingPlayer (p);
+    protected void tickBall(GameConfig config, BlockField blocks, Player p) {
+        touchingBlock(config, blocks); // moves the ball
+        if (posY >= config.HEIGHT_SCREEN - 3*config.SIDE_SIZE) touchingPlayer (p); //below the area where blocks are
 
         touchingBorder(config);
 
@@ -665,11 +3097,10 @@ class Ball {
         if (speed > cappedSpeed) speed = cappedSpeed;
 
         // extra ball management
-        if (temporaryUsedTime > 0) temporaryUsedTime -= 1000 / config.DELAY;
-        else if (temporaryUsedTime > -1000){
-            temporaryCooldownEndTime = System.currentTimeMillis() + TEMPORARY_MAX_COOLDOWN;
-            temporaryUsedTime = -1000;
-            for (TemporaryBall temp : temporaryBallList) temp.setInactive();
+        if (temporaryUntil >= 0 && clock.reached(temporaryUntil)) { // their time is up, the cooldown starts
+            temporaryCooldownUntil = clock.after(TEMPORARY_MAX_COOLDOWN);
+            temporaryUntil = -1;
+            for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).setInactive();
         }
     }
 
@@ -679,117 +3110,279 @@ class Ball {
         final int TOP_LIMIT = config.SIDE_SIZE;
         final int BOTTOM_LIMIT = config.HEIGHT_SCREEN;
 
-        boolean bounced = false;
-
-        if (posX <= LEFT_LIMIT || posX >= RIGHT_LIMIT) {
-            posX = Math.max(LEFT_LIMIT, Math.min(posX, RIGHT_LIMIT));
-            angle = 180 - angle;
-            bounced = true;
+        // clamp inside and point the velocity away from the wall, the ball can't stick to it
+        if (posX <= LEFT_LIMIT) {
+            posX = LEFT_LIMIT;
+            directionX = Math.abs(directionX);
+        }
+        else if (posX >= RIGHT_LIMIT) {
+            posX = RIGHT_LIMIT;
+            directionX = -Math.abs(directionX);
         }
-        if (posY <= TOP_LIMIT || posY >= BOTTOM_LIMIT) {
-            posY = Math.max(TOP_LIMIT, Math.min(posY, BOTTOM_LIMIT));
-            angle = 360 - angle;
-            bounced = true;
+        if (posY <= TOP_LIMIT) {
+            posY = TOP_LIMIT;
+            directionY = Math.abs(directionY);
         }
+        else if (posY >= BOTTOM_LIMIT) {
+            posY = BOTTOM_LIMIT;
+            directionY = -Math.abs(directionY);
+        }
+    }
 
-        if (bounced) {
-            angle = (angle + 360) % 360; // normalize angle
-            updatePosition(); // move again after bouncing to prevent sticking
+    public void writeState (DataOutput out) throws IOException { // the ball, its temporary balls and what they share
+        writeBallState(out);
+        out.writeInt(temporaryBallList.size());
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).writeBallState(out);
+        FloatingPoints.writeState(floatingPoints, out);
+        out.writeInt(combo.comboCounter);
+        out.writeLong(combo.until);
+    }
+
+    // for a RenderFrame: what draw(), addBounds() and the hud read. the frame's ball keeps its own objects, taken from
+    // the pools of the simulation's thread like a loaded game does, so copying allocates nothing once they're there
+    public void copyFrom (GameConfig config, Ball from) {
+        copyPosition(from);
+        score = from.score;
+        temporaryCooldownUntil = from.temporaryCooldownUntil;
+        while (temporaryBallList.size() > from.temporaryBallList.size()) temporaryBallList.remove(temporaryBallList.size() - 1);
+        while (temporaryBallList.size() < from.temporaryBallList.size()) temporaryBallList.add(new TemporaryBall(config, this));
+        for (int i = 0; i < temporaryBallList.size(); i++) temporaryBallList.get(i).copyPosition(from.temporaryBallList.get(i));
+        FloatingPoints.copy(from.floatingPoints, floatingPoints);
+        combo.comboCounter = from.combo.comboCounter;
+        combo.until = from.combo.until;
+    }
+
+    protected void copyPosition (Ball from) {
+        posX = from.posX;
+        posY = from.posY;
+        previousX = from.previousX;
+        previousY = from.previousY;
+        size = from.size;
+        active = from.active;
+    }
+
+    public void readState (GameConfig config, DataInput in) throws IOException {
+        readBallState(in);
+        int temporaryBalls = in.readInt();
+        temporaryBallList.clear();
+        for (int i = 0; i < temporaryBalls; i++) {
+            TemporaryBall temp = new TemporaryBall(config, this);
+            temp.readBallState(in);
+            temporaryBallList.add(temp);
+        }
+        FloatingPoints.readState(floatingPoints, in);
+        combo.comboCounter = in.readInt();
+        combo.until = in.readLong();
+    }
+
+    protected void writeBallState (DataOutput out) throws IOException {
+        out.writeInt(speed);
+        out.writeInt(damage);
+        out.writeInt(score);
+        out.writeInt(size);
+        out.writeLong(temporaryUntil);
+        out.writeLong(temporaryCooldownUntil);
+        out.writeDouble(posX); // whole doubles, a rounded position would play differently
+        out.writeDouble(posY);
+        out.writeDouble(previousX);
+        out.writeDouble(previousY);
+        out.writeDouble(directionX);
+        out.writeDouble(directionY);
+        out.writeBoolean(active);
+    }
+
+    protected void readBallState (DataInput in) throws IOException {
+        speed = in.readInt();
+        damage = in.readInt();
+        score = in.readInt();
+        size = in.readInt();
+        temporaryUntil = in.readLong();
+        temporaryCooldownUntil = in.readLong();
+        posX = in.readDouble();
+        posY = in.readDouble();
+        previousX = in.readDouble();
+        previousY = in.readDouble();
+        directionX = in.readDouble();
+        directionY = in.readDouble();
+        active = in.readBoolean();
+    }
+
+    public void shift (int dy) { // the endless board scrolled, the balls and points move down with the blocks
+        if (active) {
+            posY += dy;
+            previousY += dy;
+        }
+        for (int i = 0; i < temporaryBallList.size(); i++) {
+            TemporaryBall temp = temporaryBallList.get(i);
+            if (!temp.active) continue;
+            temp.posY += dy;
+            temp.previousY += dy;
         }
+        for (int i = 0; i < floatingPoints.size(); i++) floatingPoints.get(i).shift(dy);
     }
 
-    public void keyPressed(KeyEvent e) {
-        int key = e.getKeyCode();
+    public void keyPressed(int key) {
         if (!active) {
-            if (key == KeyEvent.VK_LEFT) angle = 135;
-            else if (key == KeyEvent.VK_RIGHT) angle = 45;
+            if (key == KeyEvent.VK_LEFT) setDirection(135);
+            else if (key == KeyEvent.VK_RIGHT) setDirection(45);
             else return;
 
             active = true;
             speed = BASE_SPEED;
             updatePosition();
         }
-        else if (key == KeyEvent.VK_SPACE) keyPressedTemporaryList(e);
+        else if (key == KeyEvent.VK_SPACE) keyPressedTemporaryList();
     }
 
-private void keyPressedTemporaryList (KeyEvent e) {
-    long currentTime = System.currentTimeMillis();
-    if (!temporaryBallList.isEmpty() && currentTime >= temporaryCooldownEndTime) {
-        temporaryCooldownEndTime = currentTime + TEMPORARY_MAX_COOLDOWN; // start global cooldown
+private void keyPressedTemporaryList () {
+    if (!temporaryBallList.isEmpty() && clock.reached(temporaryCooldownUntil)) {
+        temporaryCooldownUntil = clock.after(TEMPORARY_MAX_COOLDOWN); // start global cooldown
 
         int activeBalls = temporaryBallList.size();
         int i = 0;
-        for (TemporaryBall temp : temporaryBallList) {
-            int angle = this.angle + 360 / activeBalls * i;
-            angle = (angle + 360) % 360;
+        for (TemporaryBall temp : temporaryBallList) { // spread them evenly around the ball's direction
+            double rotation = Math.toRadians(360 / activeBalls * i);
+            double cos = Math.cos(rotation), sin = Math.sin(rotation);
+            temp.directionX = directionX * cos + directionY * sin;
+            temp.directionY = directionY * cos - directionX * sin;
 
-            temp.angle = angle;
             temp.speed = BASE_SPEED - 5;
-            temp.posX = this.posX;
-            temp.posY = this.posY;
+            temp.posX = temp.previousX = this.posX;
+            temp.posY = temp.previousY = this.posY;
             temp.active = true;
             i++;
             }
-        temporaryUsedTime = TEMPORARY_MAX_USED_TIME;
+        temporaryUntil = clock.after(TEMPORARY_MAX_USED_TIME);
     }
 }
 
     public static class FloatingPoints {
-        private int posY;
-        final private int posX, points;
+        private int posY, previousY;
+        private int posX, points;
         final static int MAX_DUR = 1000; // milliseconds
-        private int duration; // time remaining
+        private long until; // the tick it goes away
+        // expired ones, reused by obtain(). one pool per thread, so games can run on several threads at once
+        private static final ThreadLocal <ArrayList <FloatingPoints>> pool = ThreadLocal.withInitial(ArrayList::new);
+
+        public FloatingPoints (int x, int y, int points, long until) {
+            set(x, y, points, until);
+        }
+
+        public static void reserve (int count) {
+            ArrayList <FloatingPoints> pool = FloatingPoints.pool.get();
+            pool.ensureCapacity(count);
+            for (int i = pool.size(); i < count; i++) pool.add(new FloatingPoints(0, 0, 0, 0));
+        }
+
+        static void copy (ArrayList <FloatingPoints> from, ArrayList <FloatingPoints> to) {
+            ArrayList <FloatingPoints> pool = FloatingPoints.pool.get();
+            for (int i = 0; i < to.size(); i++) pool.add(to.get(i));
+            to.clear();
+            for (int i = 0; i < from.size(); i++) {
+                FloatingPoints original = from.get(i);
+                FloatingPoints fp = obtain(original.posX, original.posY, original.points, original.until);
+                fp.previousY = original.previousY;
+                to.add(fp);
+            }
+        }
 
-        public FloatingPoints (int x, int y, int points) {
+        public static FloatingPoints obtain (int x, int y, int points, long until) {
+            ArrayList <FloatingPoints> pool = FloatingPoints.pool.get();
+            if (pool.isEmpty()) return new FloatingPoints(x, y, points, until);
+            FloatingPoints fp = pool.remove(pool.size() - 1);
+            fp.set(x, y, points, until);
+            return fp;
+        }
+
+        private void set (int x, int y, int points, long until) {
             this.posX = x;
-            this.posY = y;
+            this.posY = this.previousY = y;
             this.points = points;
-            this.duration = MAX_DUR;
+            this.until = until;
         }
 
-        private boolean individualTick(GameConfig config) {
-            duration -= config.DELAY; // Reduce remaining time
+        private boolean individualTick(GameClock clock) {
             posY -= 1; // Optional: Make the points float upward
 
-            return duration <= 0;
+            return clock.reached(until);
+        }
+
+        public static void tick(ArrayList<FloatingPoints> array, GameClock clock) {
+            ArrayList <FloatingPoints> pool = FloatingPoints.pool.get();
+            int kept = 0; // expired ones go back to the pool, the others are moved down in order
+            for (int i = 0; i < array.size(); i++) {
+                FloatingPoints fp = array.get(i);
+                if (fp.individualTick(clock)) pool.add(fp);
+                else array.set(kept++, fp);
+            }
+            while (array.size() > kept) array.remove(array.size() - 1);
+        }
+
+        void shift (int dy) {
+            posY += dy;
+            previousY += dy;
+        }
+
+        public static void writeState (ArrayList<FloatingPoints> array, DataOutput out) throws IOException {
+            out.writeInt(array.size());
+            for (int i = 0; i < array.size(); i++) {
+                FloatingPoints fp = array.get(i);
+                out.writeInt(fp.posX);
+                out.writeInt(fp.posY);
+                out.writeInt(fp.previousY);
+                out.writeInt(fp.points);
+                out.writeLong(fp.until);
+            }
+        }
+
+        public static void readState (ArrayList<FloatingPoints> array, DataInput in) throws IOException {
+            ArrayList <FloatingPoints> pool = FloatingPoints.pool.get();
+            for (int i = 0; i < array.size(); i++) pool.add(array.get(i));
+            array.clear();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int x = in.readInt(), y = in.readInt(), previousY = in.readInt(), points = in.readInt();
+                FloatingPoints fp = obtain(x, y, points, in.readLong());
+                fp.previousY = previousY;
+                array.add(fp);
+            }
         }
 
-        public static void tick(ArrayList<FloatingPoints> array, GameConfig config) {
-            array.removeIf(points -> points.individualTick(config));
+        public void addBounds (DirtyArea area, FontMetrics metrics, double alpha) {
+            int digits = 1;
+            for (int n = Math.abs(points); n >= 10; n /= 10) digits++;
+            int y = Utils.interpolate(previousY, posY, alpha);
+            area.add(posX, y - metrics.getAscent(), digits * metrics.charWidth('0') + 1, metrics.getAscent() + metrics.getDescent());
         }
 
-        public void draw (Graphics g) {
-            Color color = Utils.rainbowColor(MAX_DUR / 7);
-            g.setColor(color);
-            g.drawString(valueOf(points), posX, posY);
+        public void draw (Graphics g, PointTexts texts, double alpha) { // the ball sets the color
+            g.drawString(texts.get(points), posX, Utils.interpolate(previousY, posY, alpha));
         }
 
     }
 
     static class Combo {
-        static int comboCounter = 0; // number of blocks destroyed in the combo
-        static int comboTimer = 0; // time remaining to maintain the combo
+        int comboCounter = 0; // number of blocks destroyed in the combo
+        long until = 0; // the tick the combo ends on, if no other block is destroyed before
         private static final int RESET_TIME = 1000; // milliseconds
+        private final GameClock clock;
 
-        public Combo () {
-            comboCounter = 0;
-            comboTimer = 0;
-        }
+        Combo (GameClock clock) { this.clock = clock; }
 
-        public static void tick (GameConfig config) {
-            if (comboTimer > 0) comboTimer -= config.DELAY;
-            else {
-                comboTimer = 0;
-                comboCounter = 0;
-            }
+        public int millisLeft () { return clock.millisLeft(until); }
+
+        public void tick () {
+            if (clock.reached(until)) comboCounter = 0;
         }
     }
 }
 
 
 class TemporaryBall extends Ball {
-    public TemporaryBall(GameConfig config) {
-        super(config);
+    private static final Color COLOR = new Color(150,20,20);
+
+    public TemporaryBall(GameConfig config, Ball owner) {
+        super(config, owner);
     }
 
     protected void setInactive () {
@@ -797,79 +3390,413 @@ class TemporaryBall extends Ball {
         speed = 0;
     }
     @Override
-    protected void tickBall(GameConfig config, Block[][] blocks, Player p, ArrayList <Powerup> powerups) {
+    protected void tickBall(GameConfig config, BlockField blocks, Player p) {
         if (!active) return;
 
-        super.tickBall (config, blocks, p, powerups);
+        super.tickBall (config, blocks, p);
+    }
+
+    @Override
+    protected int hitBy () { return GameEvents.BY_TEMPORARY_BALL; }
 
-        super.score += this.score;
-        this.score = 0;
+    @Override
+    public void savePosition () {
+        previousX = posX;
+        previousY = posY;
     }
 
     @Override
-    public void draw (Graphics g) {
+    public void addBounds (DirtyArea area, FontMetrics metrics, double alpha) {
         if (!active) return;
-        Color color = new Color(150,20,20);
-        g.setColor(color);
-        g.fillOval(posX - size/2, posY - size/2, size, size);
+        area.add(Utils.interpolate(previousX, posX, alpha) - size/2, Utils.interpolate(previousY, posY, alpha) - size/2, size + 1, size + 1);
+    }
+
+    @Override
+    public void draw (Graphics g, PointTexts texts, double alpha) {
+        if (!active) return;
+        g.setColor(COLOR);
+        g.fillOval(Utils.interpolate(previousX, posX, alpha) - size/2, Utils.interpolate(previousY, posY, alpha) - size/2, size, size);
+    }
+
+}
+// ----------------------------------------------------------------------------------------------------------
+
+
+// the balls of the ball storm upgrade. there can be thousands of them, so they aren't Ball objects: every ball is an
+// index into the arrays below, and the live ones are kept packed at the front (0 to count-1).
+// a tick has two phases. the balls are moved in parallel against the blocks as they were at the start of the tick,
+// each one stopping at the first block it touches; then the hits are applied on this thread in ball order. so when
+// two balls hit the same block in the same tick, both bounce, but only the first one (lowest index) damages it.
+// the result doesn't depend on how the balls were split between threads
+class BallStorm {
+    static final int MAX_BALLS = 4096, BALLS_PER_BURST = 1000;
+    private static final int SIZE = 8, MIN_SPEED = 5, MAX_SPEED = 30, START_SPEED = 10;
+    private static final int MIN_BALLS_PER_TASK = 256; // below this, splitting the work costs more than it saves
+    private static final Color COLOR = new Color(255, 120, 40);
+
+    private final double[] posX = new double[MAX_BALLS], posY = new double[MAX_BALLS];
+    private final double[] previousX = new double[MAX_BALLS], previousY = new double[MAX_BALLS];
+    private final double[] directionX = new double[MAX_BALLS], directionY = new double[MAX_BALLS];
+    private final int[] speed = new int[MAX_BALLS];
+    private final int[] hitCol = new int[MAX_BALLS], hitRow = new int[MAX_BALLS]; // the block hit this tick, -1 if none
+    private final boolean[] lost = new boolean[MAX_BALLS]; // fell below the player this tick
+    private long[] damaged = new long[0]; // one bit per cell, set when a ball damaged the block there this tick
+    private int count = 0;
+
+    private final MoveTask[] tasks; // one per core, reused every tick
+    private GameConfig tickConfig; // what the tasks work on during a tick
+    private BlockField tickBlocks;
+    private Player tickPlayer;
+    private double[] tickBlocksBottom = new double[0]; // per column: balls whose whole path is below it can't touch a block there
+
+    public BallStorm () {
+        tasks = new MoveTask[ForkJoinPool.getCommonPoolParallelism() + 1];
+        for (int i = 0; i < tasks.length; i++) tasks[i] = new MoveTask();
+    }
+
+    public int getCount () { return count; }
+
+    public void copyFrom (BallStorm from) { // for a RenderFrame: the positions, the rest is only for moving them
+        count = from.count;
+        System.arraycopy(from.posX, 0, posX, 0, count);
+        System.arraycopy(from.posY, 0, posY, 0, count);
+        System.arraycopy(from.previousX, 0, previousX, 0, count);
+        System.arraycopy(from.previousY, 0, previousY, 0, count);
+    }
+
+    public void burst (GameConfig config, Ball ball, Player p) { // fans a burst of balls upwards from the ball
+        double x = ball.active ? ball.posX : p.getX();
+        double y = ball.active ? ball.posY : p.getY() - SIZE;
+        int added = Math.min(BALLS_PER_BURST, MAX_BALLS - count);
+        for (int k = 0; k < added; k++) {
+            double radians = Math.toRadians(20 + 140.0 * k / added); // between 20 and 160 degrees
+            int i = count++;
+            posX[i] = previousX[i] = x;
+            posY[i] = previousY[i] = y;
+            directionX[i] = Math.cos(radians);
+            directionY[i] = -Math.sin(radians);
+            speed[i] = START_SPEED;
+        }
+    }
+
+    public void savePositions () {
+        System.arraycopy(posX, 0, previousX, 0, count);
+        System.arraycopy(posY, 0, previousY, 0, count);
+    }
+
+    public void tick (GameConfig config, BlockField blocks, Player p, ArrayList <Powerup> powerups, Ball ball) {
+        if (count == 0) return;
+        if (tickBlocksBottom.length != config.COLUMNS) tickBlocksBottom = new double[config.COLUMNS];
+        for (int col = 0; col < config.COLUMNS; col++) tickBlocksBottom[col] = (blocks.getLowestAliveRow(col) + 1) * config.TILE_HEIGHT + blocks.getOriginY();
+        moveAll(config, blocks, p);
+
+        int words = (blocks.getColumns() * blocks.getRows() + 63) >>> 6;
+        if (damaged.length != words) damaged = new long[words]; // the size of the board is only known here
+        else Arrays.fill(damaged, 0);
+        for (int i = 0; i < count; i++) { // in order, so the same game always plays out the same way
+            int col = hitCol[i], row = hitRow[i];
+            if (col < 0 || !blocks.isAlive(col, row)) continue;
+            int cell = blocks.index(col, row);
+            if ((damaged[cell >>> 6] & (1L << cell)) != 0) continue; // another ball got to it first this tick
+            damaged[cell >>> 6] |= 1L << cell;
+            speed[i] = Math.clamp(speed[i] + blocks.getSpeed(col, row), MIN_SPEED, MAX_SPEED);
+            ball.hitBlock(blocks, col, row, (int) posX[i], (int) posY[i], GameEvents.BY_STORM);
+        }
+        ball.scoreHits(config, powerups);
+        removeLost();
+    }
+
+    private void moveAll (GameConfig config, BlockField blocks, Player p) {
+        int taskCount = Math.min(tasks.length, count / MIN_BALLS_PER_TASK);
+        if (taskCount <= 1) {
+            tasks[0].sweepCollision(config, blocks, p, 0, count);
+            return;
+        }
+        tickConfig = config;
+        tickBlocks = blocks;
+        tickPlayer = p;
+        for (int t = 0; t < taskCount; t++) {
+            tasks[t].reinitialize();
+            tasks[t].from = count * t / taskCount;
+            tasks[t].to = count * (t + 1) / taskCount;
+        }
+        for (int t = 1; t < taskCount; t++) tasks[t].fork();
+        tasks[0].invoke(); // this thread does a share too
+        for (int t = 1; t < taskCount; t++) tasks[t].join();
+    }
+
+    private boolean belowBlocks (GameConfig config, double x, double y, double dx, double dy, double radius) {
+        double reach = radius + 1; // a ball that only grazes a block at the end of the tick still hits it, rounding can't undo that
+        int firstCol = Math.max(0, (int) Math.floor((Math.min(x, x + dx) - reach - config.SIDE_SIZE) / config.TILE_WIDTH));
+        int lastCol = Math.min(config.COLUMNS - 1, (int) Math.floor((Math.max(x, x + dx) + reach - config.SIDE_SIZE) / config.TILE_WIDTH));
+        double top = Math.min(y, y + dy) - reach;
+        for (int col = firstCol; col <= lastCol; col++) if (top <= tickBlocksBottom[col]) return false;
+        return true;
+    }
+
+    private void removeLost () { // packs the balls still in play, keeping their order
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (lost[i]) continue;
+            if (kept != i) {
+                posX[kept] = posX[i];
+                posY[kept] = posY[i];
+                previousX[kept] = previousX[i];
+                previousY[kept] = previousY[i];
+                directionX[kept] = directionX[i];
+                directionY[kept] = directionY[i];
+                speed[kept] = speed[i];
+            }
+            kept++;
+        }
+        count = kept;
+    }
+
+    private class MoveTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final SweptCollision sweep = new SweptCollision(); // one per task, they run at the same time
+        private int from, to;
+
+        @Override
+        protected void compute () {
+            sweepCollision(tickConfig, tickBlocks, tickPlayer, from, to);
+        }
+
+        // only reads the blocks and the player, and only writes the balls from..to-1
+        private void sweepCollision (GameConfig config, BlockField blocks, Player p, int from, int to) {
+            final double radius = SIZE / 2.0;
+            final int left = config.SIDE_SIZE, right = config.WIDTH_SCREEN - config.SIDE_SIZE, top = config.SIDE_SIZE;
+            final int playerArea = config.HEIGHT_SCREEN - 3*config.SIDE_SIZE;
+
+            for (int i = from; i < to; i++) {
+                double dx = directionX[i] * speed[i], dy = directionY[i] * speed[i];
+                hitCol[i] = -1;
+                // most of a storm flies below the blocks, only the borders are in reach there
+                boolean hit = belowBlocks(config, posX[i], posY[i], dx, dy, radius) ? sweep.findFirstBorderHit(config, posX[i], posY[i], dx, dy)
+                        : sweep.findFirstHit(config, blocks, posX[i], posY[i], dx, dy, radius);
+                if (hit) { // stop on the block or border for this tick
+                    posX[i] += dx * sweep.hitTime;
+                    posY[i] += dy * sweep.hitTime;
+                    if (sweep.hitSide) directionX[i] = -directionX[i];
+                    if (sweep.hitTopOrBottom) directionY[i] = -directionY[i];
+                    hitCol[i] = sweep.hitCol;
+                    hitRow[i] = sweep.hitRow;
+                }
+                else {
+                    posX[i] += dx;
+                    posY[i] += dy;
+                }
+
+                if (directionY[i] > 0 && posY[i] >= playerArea && Utils.touchingPlayer(posX[i], posY[i], SIZE, p)) directionY[i] = -directionY[i];
 
-        for (FloatingPoints fp : floatingPoints) fp.draw(g);
+                if (posX[i] <= left) {
+                    posX[i] = left;
+                    directionX[i] = Math.abs(directionX[i]);
+                }
+                else if (posX[i] >= right) {
+                    posX[i] = right;
+                    directionX[i] = -Math.abs(directionX[i]);
+                }
+                if (posY[i] <= top) {
+                    posY[i] = top;
+                    directionY[i] = Math.abs(directionY[i]);
+                }
+                lost[i] = posY[i] >= config.HEIGHT_SCREEN; // unlike the main ball, storm balls don't come back
+            }
+        }
+    }
+
+    public void shift (int dy) { // the endless board scrolled
+        for (int i = 0; i < count; i++) {
+            posY[i] += dy;
+            previousY[i] += dy;
+        }
+    }
+
+    public void writeState (DataOutput out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeDouble(posX[i]);
+            out.writeDouble(posY[i]);
+            out.writeDouble(previousX[i]);
+            out.writeDouble(previousY[i]);
+            out.writeDouble(directionX[i]);
+            out.writeDouble(directionY[i]);
+            out.writeInt(speed[i]);
+        }
+    }
+
+    public void readState (DataInput in) throws IOException {
+        int balls = in.readInt();
+        if (balls < 0 || balls > MAX_BALLS) throw new IOException("a storm of " + balls + " balls, at most " + MAX_BALLS + " fit");
+        for (int i = 0; i < balls; i++) {
+            posX[i] = in.readDouble();
+            posY[i] = in.readDouble();
+            previousX[i] = in.readDouble();
+            previousY[i] = in.readDouble();
+            directionX[i] = in.readDouble();
+            directionY[i] = in.readDouble();
+            speed[i] = in.readInt();
+        }
+        count = balls;
+    }
+
+    public void addBounds (DirtyArea area, double alpha) {
+        for (int i = 0; i < count; i++) {
+            area.add(Utils.interpolate(previousX[i], posX[i], alpha) - SIZE/2, Utils.interpolate(previousY[i], posY[i], alpha) - SIZE/2, SIZE + 1, SIZE + 1);
+        }
     }
 
+    public void draw (Graphics g, double alpha) {
+        if (count == 0) return;
+        g.setColor(COLOR);
+        for (int i = 0; i < count; i++) {
+            g.fillOval(Utils.interpolate(previousX[i], posX[i], alpha) - SIZE/2, Utils.interpolate(previousY[i], posY[i], alpha) - SIZE/2, SIZE, SIZE);
+        }
+    }
 }
+
+
 // ----------------------------------------------------------------------------------------------------------
 
 
 class Powerup {
-    private int timeFalling = 3000, duration = 5000, posX, posY; // time is in milliseconds
+    private static final int WAIT_TIME = 1875, DURATION = 3125, BLINK_TIME = 300; // milliseconds
+    private long waitUntil, caughtUntil; // ticks: when it's gone from the player's row (-1 while falling), when a caught one ends
+    private int posX, posY;
     private final int size = 10;
     private powerType type;
     boolean caught = false;
-    private int finalPosY;
+    private int finalPosY, previousY; // previousY is the position at the start of the tick, for drawing between ticks
     public enum powerType {
-        pacman,
-        spaceInvaders
+        pacman(new Color (250, 200, 0)),
+        spaceInvaders(new Color(200,200,200));
+
+        final Color color, brightColor;
+
+        powerType (Color color) {
+            this.color = color;
+            this.brightColor = color.brighter();
+        }
     }
+    static final powerType[] TYPES = powerType.values();
+    // removed powerups, reused by spawnPowerup. one pool per thread, so games can run on several threads at once
+    private static final ThreadLocal <ArrayList <Powerup>> pool = ThreadLocal.withInitial(ArrayList::new);
 
-    public static void spawnPowerup (ArrayList <Powerup> array,GameConfig config, int x, int y) {
-        Powerup pwr = new Powerup();
+    public static void reserve (int count) {
+        ArrayList <Powerup> pool = Powerup.pool.get();
+        pool.ensureCapacity(count);
+        for (int i = pool.size(); i < count; i++) pool.add(new Powerup());
+    }
+
+    public static void spawnPowerup (ArrayList <Powerup> array,GameConfig config, int x, int y, RandomStream random) {
+        ArrayList <Powerup> pool = Powerup.pool.get();
+        Powerup pwr = pool.isEmpty() ? new Powerup() : pool.remove(pool.size() - 1);
+        pwr.waitUntil = -1;
+        pwr.caughtUntil = 0;
+        pwr.caught = false;
         pwr.posX = x;
-        pwr.posY = y;
+        pwr.posY = pwr.previousY = y;
         pwr.finalPosY = config.HEIGHT_SCREEN - config.SIDE_SIZE / 2 - pwr.size/2;
 
-        Random ran = new Random(); // random power up
-        pwr.type = powerType.values()[ran.nextInt(powerType.values().length)];
+        pwr.type = TYPES[random.nextInt(TYPES.length)]; // random power up
         array.add(pwr);
     }
 
-    public void draw (Graphics g) {
+    public void savePosition () { previousY = posY; }
+    public powerType getType () { return type; }
+
+    public void shift (int dy) { // the endless board scrolled, a falling powerup moves down with it until the player's row
+        if (caught || posY >= finalPosY) return;
+        posY = Math.min(posY + dy, finalPosY);
+        previousY = Math.min(previousY + dy, finalPosY);
+    }
+
+    public static void writeState (ArrayList <Powerup> array, DataOutput out) throws IOException {
+        out.writeInt(array.size());
+        for (int i = 0; i < array.size(); i++) {
+            Powerup pwr = array.get(i);
+            out.writeByte(pwr.type.ordinal());
+            out.writeInt(pwr.posX);
+            out.writeInt(pwr.posY);
+            out.writeInt(pwr.previousY);
+            out.writeInt(pwr.finalPosY);
+            out.writeLong(pwr.waitUntil);
+            out.writeLong(pwr.caughtUntil);
+            out.writeBoolean(pwr.caught);
+        }
+    }
+
+    public static void copy (ArrayList <Powerup> from, ArrayList <Powerup> to) { // for a RenderFrame, see Ball.copyFrom
+        ArrayList <Powerup> pool = Powerup.pool.get();
+        for (int i = 0; i < to.size(); i++) pool.add(to.get(i));
+        to.clear();
+        for (int i = 0; i < from.size(); i++) {
+            Powerup original = from.get(i);
+            Powerup pwr = pool.isEmpty() ? new Powerup() : pool.remove(pool.size() - 1);
+            pwr.type = original.type;
+            pwr.posX = original.posX;
+            pwr.posY = original.posY;
+            pwr.previousY = original.previousY;
+            pwr.finalPosY = original.finalPosY;
+            pwr.waitUntil = original.waitUntil;
+            pwr.caughtUntil = original.caughtUntil;
+            pwr.caught = original.caught;
+            to.add(pwr);
+        }
+    }
+
+    public static void readState (ArrayList <Powerup> array, DataInput in) throws IOException {
+        ArrayList <Powerup> pool = Powerup.pool.get();
+        for (int i = 0; i < array.size(); i++) pool.add(array.get(i));
+        array.clear();
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            Powerup pwr = pool.isEmpty() ? new Powerup() : pool.remove(pool.size() - 1);
+            pwr.type = TYPES[in.readUnsignedByte()];
+            pwr.posX = in.readInt();
+            pwr.posY = in.readInt();
+            pwr.previousY = in.readInt();
+            pwr.finalPosY = in.readInt();
+            pwr.waitUntil = in.readLong();
+            pwr.caughtUntil = in.readLong();
+            pwr.caught = in.readBoolean();
+            array.add(pwr);
+        }
+    }
+
+    public void addBounds (DirtyArea area, double alpha) {
+        if (caught) return;
+        area.add(posX - size/2, Utils.interpolate(previousY, posY, alpha) - size/2, size + 1, size + 1);
+    }
+
+    public void draw (Graphics g, GameClock clock, double alpha) {
         if (caught) return; // only draw if its not caught
 
-        Color color = switch (this.type) {
-            case pacman -> new Color (250, 200, 0);
-            case spaceInvaders -> new Color(200,200,200);
-        };
+        Color color = type.color;
 
-        if (posY >= finalPosY) {
-            // Alternate brightness every x seconds
-            int timePerBlink = 500; // milliseconds
-            boolean isBrightPhase = (timeFalling / timePerBlink) % 2 == 0;
+        if (waitUntil >= 0) { // alternate brightness while waiting on the player's row
+            boolean isBrightPhase = (clock.millisLeft(waitUntil) / BLINK_TIME) % 2 == 0;
 
-            if (isBrightPhase) color = color.brighter();
+            if (isBrightPhase) color = type.brightColor;
         }
         g.setColor(color);
-        g.fillOval(posX - size/2, posY - size/2, size, size);
+        int y = Utils.interpolate(previousY, posY, alpha);
+        g.fillOval(posX - size/2, y - size/2, size, size);
     }
 
-    public static void tick(GameConfig config, ArrayList<Powerup> array, Powerup activePowerup , Player p) {
+    public static void tick(GameClock clock, GameEvents events, ArrayList<Powerup> array, Powerup activePowerup , Player p) {
+        ArrayList <Powerup> pool = Powerup.pool.get();
         for (int i = 0; i < array.size(); i++) {
             Powerup pwr = array.get(i);
-            status indTick = pwr.individualTick(config, p);
+            status indTick = pwr.individualTick(clock, p);
             if (indTick == status.RemoveSingle) {
-                array.remove(i);
+                pool.add(array.remove(i));
                 if (activePowerup == pwr) activePowerup = null;
                 i--;
             } else if (indTick == status.Caught) {
+                events.publish(GameEvents.Kind.POWERUP_CAUGHT, pwr.type.ordinal(), 0, 0, 0);
+                for (int j = 0; j < array.size(); j++) pool.add(array.get(j)); // addAll would copy the list first
                 array.clear();
                 activePowerup = pwr;
                 return;
@@ -883,21 +3810,22 @@ class Powerup {
         Waiting
     }
 
-    private status individualTick (GameConfig config, Player p) {
+    private status individualTick (GameClock clock, Player p) {
         if (caught) { // if caught, will wait the duration time before being removed
-            duration -= 1000 / config.DELAY;
-            if (duration <= 0) return status.RemoveSingle;
+            if (clock.reached(caughtUntil)) return status.RemoveSingle;
             return status.Waiting;
         }
 
         if (Utils.touchingPlayer(this.posX, this.posY, this.size, p)) { // when one powerup is caught, clean all others
             caught = true;
+            caughtUntil = clock.after(DURATION);
             return status.Caught;
         }
 
-        if (timeFalling <= 0) return status.RemoveSingle; //if time runs out, remove
-
-        if (posY >= finalPosY) timeFalling -= 1000 / config.DELAY; // wait on the player's row
+        if (posY >= finalPosY) { // wait on the player's row, from the first tick it's there
+            if (waitUntil < 0) waitUntil = clock.after(WAIT_TIME);
+            if (clock.reached(waitUntil)) return status.RemoveSingle; // if time runs out, remove
+        }
         else posY += 10; // falling
         return status.Waiting;
     }
@@ -907,30 +3835,159 @@ class Powerup {
 
 
 
+// ----------------------------------------------------------------------------------------------------------------------
+
+// finds the first block a moving ball touches during a tick. the ball's centre is walked through the grid one tile at a
+// time (grid DDA), and the tiles around each one are tested against the ball's path, with the blocks grown by the ball's
+// radius so the ball can be treated as a point
+class SweptCollision {
+    static final int MAX_HITS_PER_TICK = 4;
+    private static final double EPSILON = 1e-9;
+
+    // result of the last findFirstHit
+    double hitTime; // 0-1, fraction of the movement done before touching
+    int hitCol, hitRow; // -1 when it was a border
+    boolean hitSide, hitTopOrBottom; // which faces were hit, both for a corner
+
+    public boolean findFirstHit (GameConfig config, BlockField blocks, double x, double y, double dx, double dy, double radius) {
+        int width = config.TILE_WIDTH, height = config.TILE_HEIGHT;
+        double gridX = x - config.SIDE_SIZE, gridY = y - blocks.getOriginY(); // start relative to the grid
+        int col = (int) Math.floor(gridX / width), row = (int) Math.floor(gridY / height);
+        int endCol = (int) Math.floor((gridX + dx) / width), endRow = (int) Math.floor((gridY + dy) / height);
+        int stepCol = dx > 0 ? 1 : -1, stepRow = dy > 0 ? 1 : -1;
+
+        // time to cross a whole tile, and time to reach the first tile border, on each axis
+        double deltaCol = dx == 0 ? Double.POSITIVE_INFINITY : width / Math.abs(dx);
+        double deltaRow = dy == 0 ? Double.POSITIVE_INFINITY : height / Math.abs(dy);
+        double nextCol = dx == 0 ? Double.POSITIVE_INFINITY : ((dx > 0 ? (col + 1) * width : col * width) - gridX) / dx;
+        double nextRow = dy == 0 ? Double.POSITIVE_INFINITY : ((dy > 0 ? (row + 1) * height : row * height) - gridY) / dy;
+
+        // blocks further than this many tiles from the centre's tile can't be touched
+        int reachCol = (int) Math.ceil(radius / width), reachRow = (int) Math.ceil(radius / height);
+        int firstRow = blocks.getFirstVisibleRow(); // the ball's radius reaches above the top border, the blocks up there can't be hit
+
+        hitTime = Double.POSITIVE_INFINITY;
+        double enterTime = 0; // when the centre entered the current tile
+        while (true) {
+            for (int c = col - reachCol; c <= col + reachCol; c++) {
+                for (int r = row - reachRow; r <= row + reachRow; r++) {
+                    if (c < 0 || r < firstRow || c >= config.COLUMNS || r >= blocks.getRows() || !blocks.isAlive(c, r)) continue;
+                    testBlock(config, blocks, c, r, x, y, dx, dy, radius);
+                }
+            }
+            if (col == endCol && row == endRow) break;
+            // a hit found so far is earlier than anything in the tiles still to come
+            enterTime = Math.min(nextCol, nextRow);
+            if (enterTime > 1 || enterTime > hitTime) break;
+
+            if (nextCol < nextRow) {
+                col += stepCol;
+                nextCol += deltaCol;
+            } else {
+                row += stepRow;
+                nextRow += deltaRow;
+            }
+        }
+        testBorders(config, x, y, dx, dy);
+        return hitTime <= 1;
+    }
+
+    public boolean findFirstBorderHit (GameConfig config, double x, double y, double dx, double dy) { // findFirstHit without blocks
+        hitTime = Double.POSITIVE_INFINITY;
+        testBorders(config, x, y, dx, dy);
+        return hitTime <= 1;
+    }
+
+    // the centre can't cross the left, right and top borders. without them, a ball sliding along a wall could pass
+    // beside the blocks of the first column through the wall, and the clamp afterwards would put it inside a block
+    private void testBorders (GameConfig config, double x, double y, double dx, double dy) {
+        int left = config.SIDE_SIZE, right = config.WIDTH_SCREEN - config.SIDE_SIZE, top = config.SIDE_SIZE;
+        double timeX = Double.POSITIVE_INFINITY, timeY = Double.POSITIVE_INFINITY;
+        if (dx < 0 && x + dx < left) timeX = Math.max(0, (left - x) / dx);
+        else if (dx > 0 && x + dx > right) timeX = Math.max(0, (right - x) / dx);
+        if (dy < 0 && y + dy < top) timeY = Math.max(0, (top - y) / dy);
+
+        double time = Math.min(timeX, timeY);
+        if (time > 1 || time >= hitTime) return;
+        hitTime = time;
+        hitCol = hitRow = -1;
+        hitSide = timeX <= timeY + EPSILON;
+        hitTopOrBottom = timeY <= timeX + EPSILON;
+    }
+
+    private void testBlock (GameConfig config, BlockField blocks, int col, int row, double x, double y, double dx, double dy, double radius) {
+        double left = col * config.TILE_WIDTH + config.SIDE_SIZE - radius, right = left + config.TILE_WIDTH + 2 * radius;
+        double top = row * config.TILE_HEIGHT + blocks.getOriginY() - radius, bottom = top + config.TILE_HEIGHT + 2 * radius;
+
+        double enterX, exitX, enterY, exitY;
+        if (dx == 0) {
+            if (x <= left || x >= right) return;
+            enterX = Double.NEGATIVE_INFINITY;
+            exitX = Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (left - x) / dx, t2 = (right - x) / dx;
+            enterX = Math.min(t1, t2);
+            exitX = Math.max(t1, t2);
+        }
+        if (dy == 0) {
+            if (y <= top || y >= bottom) return;
+            enterY = Double.NEGATIVE_INFINITY;
+            exitY = Double.POSITIVE_INFINITY;
+        } else {
+            double t1 = (top - y) / dy, t2 = (bottom - y) / dy;
+            enterY = Math.min(t1, t2);
+            exitY = Math.max(t1, t2);
+        }
+
+        double enter = Math.max(enterX, enterY), exit = Math.min(exitX, exitY);
+        if (enter >= exit || enter > 1) return; // the path misses the block or only grazes it
+        if (enter < 0) {
+            // already overlapping at the start (clamped against a border, that's up to the radius). bounce if the overlap
+            // is shallow, a deep one means the ball was moved into the block and pushing it out would look wrong
+            double depth = -enter * (enterX > enterY ? Math.abs(dx) : Math.abs(dy));
+            if (exit <= 0 || depth > radius + 1) return;
+            enter = 0;
+        }
+        if (enter >= hitTime) return;
+
+        hitTime = enter;
+        hitCol = col;
+        hitRow = row;
+        hitSide = enterX >= enterY - EPSILON;
+        hitTopOrBottom = enterY >= enterX - EPSILON;
+    }
+}
+
 // ----------------------------------------------------------------------------------------------------------------------
 
 class Utils {
-    public static Color rainbowColor (int time) { // based on the ball combo
+    public static int interpolate (double previous, double current, double alpha) {
+        return (int) Math.round(previous + (current - previous) * alpha);
+    }
+
+    private static final Color[] RAINBOW = {
+        new Color(255,0,0),
+        new Color(255,174,66),
+        new Color(255,240,0),
+        new Color(204,255,0),
+        new Color(125,249,255),
+        new Color(42,82,190),
+        new Color(150,0,130)
+    };
+
+    public static Color rainbowColor (Ball.Combo combo, int time) { // based on the ball combo
         Color color = Color.WHITE;
-        if (Ball.Combo.comboCounter > 5) {
+        if (combo.comboCounter > 5) {
             // Alternate color every x seconds
-            int colorPhase = (Ball.Combo.comboTimer / time) % 7;
-            switch (colorPhase) {
-                case 0 -> color = new Color(255,0,0);
-                case 1 -> color = new Color(255,174,66);
-                case 2 -> color = new Color(255,240,0);
-                case 3 -> color = new Color(204,255,0);
-                case 4 -> color = new Color(125,249,255);
-                case 5 -> color = new Color(42,82,190);
-                case 6 -> color = new Color(150,0,130);
-            }
+            int colorPhase = (combo.millisLeft() / time) % 7;
+            color = RAINBOW[colorPhase];
         }
         return color;
     }
 
-    public static boolean touchingPlayer (int x, int y, int diameter, Player p) {
-        int playerX = p.getPosition().x;
-        int playerY = p.getPosition().y;
+    public static boolean touchingPlayer (double x, double y, int diameter, Player p) {
+        int playerX = p.getX();
+        int playerY = p.getY();
         int playerWidth = p.getWidth();
         int playerHeight = p.getHeight();
 